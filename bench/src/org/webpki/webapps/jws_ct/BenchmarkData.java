@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.util.Random;
+
+/**
+ * Test documents and keys shared by the benchmarks.
+ *
+ * Keys are read from the same openkeystore test data that build.xml puts
+ * in the war.  The directory is given by the "bench.keys" system property.
+ */
+class BenchmarkData {
+
+    static final String KEYS_DIR = System.getProperty("bench.keys", "../openkeystore/testdata/keys");
+
+    // Every algorithm offered by the CreateServlet selector
+    static final String[] ALGORITHMS = {
+        "HS256", "HS384", "HS512",
+        "Ed25519", "Ed448",
+        "ES256", "ES384", "ES512",
+        "RS256", "RS384", "RS512",
+        "PS256", "PS384", "PS512"
+    };
+
+    static final String[] ESCAPES = {"\\n", "\\\"", "\\\\", "\\u0001", "\\u20ac"};
+
+    static String readKeyFile(String name) throws IOException {
+        return new String(Files.readAllBytes(new File(KEYS_DIR, name).toPath()), "utf-8").trim();
+    }
+
+    // Same mapping as JwsCtService.keyDeclarations
+    static String keyFilePrefix(String algorithm) {
+        switch (algorithm) {
+            case "HS256":
+                return "a256";
+            case "HS384":
+                return "a384";
+            case "HS512":
+                return "a512";
+            case "Ed25519":
+                return "ed25519";
+            case "Ed448":
+                return "ed448";
+            case "ES256":
+                return "p256";
+            case "ES384":
+                return "p384";
+            case "ES512":
+                return "p521";
+            default:
+                return "r2048";
+        }
+    }
+
+    static String privateKey(String algorithm) throws IOException {
+        return algorithm.startsWith("HS") ?
+                readKeyFile(keyFilePrefix(algorithm) + "bitkey.hex")
+                                          :
+                readKeyFile(keyFilePrefix(algorithm) + "privatekey.pem");
+    }
+
+    static String publicKey(String algorithm) throws IOException {
+        return algorithm.startsWith("HS") ?
+                readKeyFile(keyFilePrefix(algorithm) + "bitkey.hex")
+                                          :
+                readKeyFile(keyFilePrefix(algorithm) + "publickey.pem");
+    }
+
+    static String string(Random random, int length, boolean unicode) {
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (unicode) {
+                switch (random.nextInt(6)) {
+                    case 0:
+                        s.append((char) (0xe0 + random.nextInt(32)));       // Latin-1
+                        break;
+                    case 1:
+                        s.append((char) (0x4e00 + random.nextInt(5000)));   // CJK
+                        break;
+                    case 2:
+                        s.appendCodePoint(0x1f600 + random.nextInt(64));    // Emoji
+                        break;
+                    case 3:
+                        s.append(ESCAPES[random.nextInt(ESCAPES.length)]);  // JSON escapes
+                        break;
+                    default:
+                        s.append((char) ('a' + random.nextInt(26)));
+                }
+            } else {
+                s.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * Generate a JSON document of a given shape.
+     *
+     * @param shape One of "wide", "deep", "numbers", "unicode"
+     * @param size Roughly the number of leaf values
+     */
+    static String document(String shape, int size) {
+        Random random = new Random(8785);
+        StringBuilder json = new StringBuilder();
+        switch (shape) {
+            case "wide":
+                json.append('{');
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append('"')
+                        .append(string(random, 12, false))
+                        .append(i)
+                        .append("\":\"")
+                        .append(string(random, 20, false))
+                        .append('"');
+                }
+                return json.append('}').toString();
+
+            case "deep":
+                int depth = Math.min(size, 100);
+                for (int i = 0; i < depth; i++) {
+                    json.append("{\"level\":")
+                        .append(i)
+                        .append(",\"name\":\"")
+                        .append(string(random, 10, false))
+                        .append("\",\"list\":[true,null,")
+                        .append(i * 3)
+                        .append("],\"next\":");
+                }
+                json.append("{}");
+                for (int i = 0; i < depth; i++) {
+                    json.append('}');
+                }
+                return json.toString();
+
+            case "numbers":
+                json.append("{\"numbers\":[");
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    switch (i % 4) {
+                        case 0:
+                            json.append(random.nextInt());
+                            break;
+                        case 1:
+                            json.append(random.nextDouble() * 1e6);
+                            break;
+                        case 2:
+                            json.append(random.nextDouble()).append("e-").append(random.nextInt(300));
+                            break;
+                        default:
+                            json.append(random.nextInt(1000)).append("e+").append(random.nextInt(20));
+                    }
+                }
+                return json.append("]}").toString();
+
+            default:  // "unicode"
+                json.append('{');
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append('"')
+                        .append(string(random, 6, true))
+                        .append(i)
+                        .append("\":\"")
+                        .append(string(random, 30, true))
+                        .append('"');
+                }
+                return json.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+/**
+ * RFC 8785 canonicalization: the library serializer versus CanonicalWriter.
+ *
+ * Parsing is measured separately since every servlet request pays for it
+ * once regardless of which canonicalizer is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanonicalizationBenchmark {
+
+    @Param({"wide", "deep", "numbers", "unicode"})
+    String shape;
+
+    @Param({"10", "1000"})
+    int size;
+
+    byte[] json;
+    JSONObjectReader parsed;
+
+    @Setup
+    public void setup() throws Exception {
+        json = BenchmarkData.document(shape, size).getBytes("utf-8");
+        parsed = JSONParser.parse(json);
+        // The benchmark is pointless if the two do not agree
+        if (!Arrays.equals(parsed.serializeToBytes(JSONOutputFormats.CANONICALIZED),
+                           canonicalWriter())) {
+            throw new IllegalStateException("Canonicalization mismatch for: " + shape);
+        }
+    }
+
+    @Benchmark
+    public JSONObjectReader parse() throws Exception {
+        return JSONParser.parse(json);
+    }
+
+    @Benchmark
+    public byte[] library() throws Exception {
+        return parsed.serializeToBytes(JSONOutputFormats.CANONICALIZED);
+    }
+
+    @Benchmark
+    public byte[] canonicalWriter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter.canonicalize(parsed, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public long canonicalWriterNull() throws Exception {
+        return CanonicalWriter.canonicalize(parsed, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public byte[] libraryDigest() throws Exception {
+        return HashAlgorithms.SHA256.digest(
+                parsed.serializeToBytes(JSONOutputFormats.CANONICALIZED));
+    }
+
+    @Benchmark
+    public byte[] canonicalWriterDigest() throws Exception {
+        return CanonicalWriter.digest(parsed, HashAlgorithms.SHA256);
+    }
+}
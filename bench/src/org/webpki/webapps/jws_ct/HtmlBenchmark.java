@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+/**
+ * HTML encoding and result box rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlBenchmark {
+
+    @Param({"wide", "unicode"})
+    String shape;
+
+    @Param({"10", "1000"})
+    int size;
+
+    String json;
+    String prettyHtml;
+
+    @Setup
+    public void setup() throws Exception {
+        json = BenchmarkData.document(shape, size);
+        prettyHtml = JSONParser.parse(json).serializeToString(JSONOutputFormats.PRETTY_HTML);
+    }
+
+    @Benchmark
+    public String encode() {
+        return HTML.encode(json, true);
+    }
+
+    @Benchmark
+    public String fancyBox() {
+        return HTML.fancyBox("data", prettyHtml, "Benchmark data");
+    }
+
+    @Benchmark
+    public String fancyCode() {
+        return HTML.fancyCode("data", json, "Benchmark data");
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import java.net.URI;
+import java.net.URLEncoder;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import javax.management.openmbean.CompositeData;
+
+import javax.servlet.http.HttpServlet;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Load and soak test driver for /create, /validate and /hash.
+ *
+ * The target is either the servlets in this JVM (no container, no network)
+ * or a deployment on the loopback interface, like "ant run-embedded".
+ * Configuration is through system properties:
+ *<pre>
+ *   load.target       "inprocess" (default) or the application URL,
+ *                     e.g. http://localhost:8080
+ *   load.mix          Endpoint weights, default create:1,validate:4,hash:1
+ *   load.algorithms   Default ES256,HS256,RS256
+ *   load.sizes        Document sizes (see BenchmarkData), default 10,1000
+ *   load.concurrency  Worker threads, default 16
+ *   load.rate         Total requests per second, default 0 (= as fast as possible)
+ *   load.warmup       Seconds excluded from the summary, default 10
+ *   load.duration     Seconds measured after the warmup, default 60
+ *   load.interval     Seconds between progress lines, default 10
+ *</pre>
+ * With a fixed rate, latency is measured from when a request should have
+ * been sent so a stalled server is not hidden by workers that stop sending
+ * (coordinated omission).  Stepping the rate up between runs gives the
+ * latency knee, running flat out gives the throughput ceiling.
+ *
+ * GC pauses are those of this JVM, which for "inprocess" includes the
+ * servlets.  For a loopback target run the server with -Xlog:gc instead.
+ * A request failed if it did not set a Server-Timing header, which the
+ * servlets only do for successful results.
+ */
+public class LoadGenerator {
+
+    static final String PROPERTY_PREFIX = "load.";
+
+    static final String FORM_CONTENT_TYPE = ServletBenchmark.FORM_CONTENT_TYPE;
+
+    /**
+     * Log-linear latency histogram with 64 sub-buckets per power of two,
+     * i.e. percentiles are within ~1.5%.  Recording is a single atomic add.
+     */
+    static class Histogram {
+
+        static final int SUB_BITS = 6;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+
+        AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+
+        static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return ((exponent + 1) << SUB_BITS) + (int) ((value >>> exponent) - SUB_COUNT);
+        }
+
+        static long lowestValue(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            return ((long) ((index & (SUB_COUNT - 1)) + SUB_COUNT)) <<
+                    ((index >> SUB_BITS) - 1);
+        }
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(nanos, 0)));
+        }
+
+        long[] snapshot() {
+            long[] copy = new long[counts.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        static long[] difference(long[] current, long[] previous) {
+            long[] result = new long[current.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = current[i] - previous[i];
+            }
+            return result;
+        }
+
+        static long total(long[] counts) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        // Upper end of the bucket holding the percentile, in nanoseconds
+        static long percentile(long[] counts, double percentile) {
+            long total = total(counts);
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i];
+                if (sum >= rank) {
+                    return lowestValue(i + 1) - 1;
+                }
+            }
+            return lowestValue(counts.length) - 1;
+        }
+    }
+
+    static class Endpoint {
+
+        String name;
+        HttpServlet servlet;
+        int weight;
+        Histogram latency = new Histogram();
+        LongAdder errors = new LongAdder();
+
+        Endpoint(String name, HttpServlet servlet, int weight) {
+            this.name = name;
+            this.servlet = servlet;
+            this.weight = weight;
+        }
+    }
+
+    // One endpoint, algorithm and size combination
+    static class Workload {
+
+        Endpoint endpoint;
+        Map<String, String> parameters;
+        byte[] formBody;
+
+        Workload(Endpoint endpoint, Map<String, String> parameters) throws IOException {
+            this.endpoint = endpoint;
+            this.parameters = parameters;
+            StringBuilder form = new StringBuilder();
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (form.length() > 0) {
+                    form.append('&');
+                }
+                form.append(parameter.getKey())
+                    .append('=')
+                    .append(URLEncoder.encode(parameter.getValue(), "utf-8"));
+            }
+            formBody = form.toString().getBytes("utf-8");
+        }
+    }
+
+    // Counts stop-the-world pauses; concurrent cycles are not pauses
+    static class GcMonitor implements NotificationListener {
+
+        LongAdder pauses = new LongAdder();
+        LongAdder pauseMillis = new LongAdder();
+        AtomicLong maxPauseMillis = new AtomicLong();
+
+        void start() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc.getName().contains("Concurrent") || gc.getName().contains("Cycles")) {
+                    continue;
+                }
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(
+                    GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            long duration = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData()).getGcInfo().getDuration();
+            pauses.increment();
+            pauseMillis.add(duration);
+            long max;
+            while ((max = maxPauseMillis.get()) < duration &&
+                   !maxPauseMillis.compareAndSet(max, duration)) {
+            }
+        }
+    }
+
+    static String getProperty(String name, String defaultValue) {
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    static int getIntProperty(String name, int defaultValue) {
+        return Integer.getInteger(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    String target;
+    HttpClient httpClient;
+    List<Endpoint> endpoints = new ArrayList<>();
+    Map<Endpoint, List<Workload>> workloads = new HashMap<>();
+    int totalWeight;
+    GcMonitor gcMonitor = new GcMonitor();
+    volatile boolean running = true;
+
+    LoadGenerator() throws Exception {
+        target = getProperty("target", "inprocess");
+        if (!target.equals("inprocess")) {
+            httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            if (target.endsWith("/")) {
+                target = target.substring(0, target.length() - 1);
+            }
+        }
+        Map<String, HttpServlet> servlets = new LinkedHashMap<>();
+        servlets.put("create", new CreateServlet());
+        servlets.put("validate", new ValidateServlet());
+        servlets.put("hash", new HashServlet());
+        for (String weighted : getProperty("mix", "create:1,validate:4,hash:1").split(",")) {
+            String[] nameAndWeight = weighted.trim().split(":");
+            HttpServlet servlet = servlets.get(nameAndWeight[0]);
+            if (servlet == null) {
+                throw new IllegalArgumentException("Unknown endpoint: " + nameAndWeight[0]);
+            }
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1]) : 1;
+            if (weight > 0) {
+                Endpoint endpoint = new Endpoint(nameAndWeight[0], servlet, weight);
+                endpoints.add(endpoint);
+                workloads.put(endpoint, new ArrayList<Workload>());
+                totalWeight += weight;
+            }
+        }
+        JsonSignServlet jsonSignServlet = new JsonSignServlet();
+        for (String algorithm : getProperty("algorithms", "ES256,HS256,RS256").split(",")) {
+            algorithm = algorithm.trim();
+            for (String size : getProperty("sizes", "10,1000").split(",")) {
+                addWorkloads(jsonSignServlet, algorithm, Integer.parseInt(size.trim()));
+            }
+        }
+    }
+
+    // The same requests as ServletBenchmark
+    void addWorkloads(JsonSignServlet jsonSignServlet, String algorithm, int size)
+            throws Exception {
+        ServletBenchmark template = new ServletBenchmark();
+        template.algorithm = algorithm;
+        template.size = size;
+        template.setup();
+        for (Endpoint endpoint : endpoints) {
+            Map<String, String> parameters;
+            switch (endpoint.name) {
+                case "create":
+                    parameters = template.createParameters;
+                    break;
+                case "validate":
+                    parameters = template.validateParameters;
+                    break;
+                default:
+                    parameters = template.hashParameters;
+            }
+            workloads.get(endpoint).add(new Workload(endpoint, parameters));
+        }
+    }
+
+    Workload nextWorkload(ThreadLocalRandom random) {
+        int pick = random.nextInt(totalWeight);
+        for (Endpoint endpoint : endpoints) {
+            pick -= endpoint.weight;
+            if (pick < 0) {
+                List<Workload> candidates = workloads.get(endpoint);
+                return candidates.get(random.nextInt(candidates.size()));
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    boolean execute(Workload workload) throws Exception {
+        if (httpClient == null) {
+            Map<String, String> headers = new HashMap<>();
+            workload.endpoint.servlet.service(
+                    ServletMocks.request(FORM_CONTENT_TYPE, workload.parameters, null),
+                    ServletMocks.response(new ServletMocks.CountingOutputStream(), headers));
+            return headers.containsKey("Server-Timing");
+        }
+        HttpResponse<Void> response = httpClient.send(
+                HttpRequest.newBuilder(URI.create(target + "/" + workload.endpoint.name))
+                    .header("Content-Type", FORM_CONTENT_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(workload.formBody))
+                    .build(),
+                HttpResponse.BodyHandlers.discarding());
+        return response.statusCode() == 200 &&
+               response.headers().firstValue("Server-Timing").isPresent();
+    }
+
+    void worker(long intervalNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Spread the workers over the first interval
+        long intendedStart = System.nanoTime() + (long) (random.nextDouble() * intervalNanos);
+        while (running) {
+            if (intervalNanos > 0) {
+                long wait = intendedStart - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            } else {
+                intendedStart = System.nanoTime();
+            }
+            Workload workload = nextWorkload(random);
+            boolean success;
+            try {
+                success = execute(workload);
+            } catch (Exception e) {
+                success = false;
+            }
+            workload.endpoint.latency.record(System.nanoTime() - intendedStart);
+            if (!success) {
+                workload.endpoint.errors.increment();
+            }
+            intendedStart += intervalNanos;
+        }
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    static String report(long[] latencies, long errors, double seconds) {
+        long requests = Histogram.total(latencies);
+        return String.format("%10.1f req/s  p50 %9s  p99 %9s  p999 %9s ms  errors %.2f%%",
+                             requests / seconds,
+                             millis(Histogram.percentile(latencies, 50)),
+                             millis(Histogram.percentile(latencies, 99)),
+                             millis(Histogram.percentile(latencies, 99.9)),
+                             requests == 0 ? 0.0 : errors * 100.0 / requests);
+    }
+
+    long[] combinedLatencies() {
+        long[] combined = new long[endpoints.get(0).latency.counts.length()];
+        for (Endpoint endpoint : endpoints) {
+            long[] latencies = endpoint.latency.snapshot();
+            for (int i = 0; i < combined.length; i++) {
+                combined[i] += latencies[i];
+            }
+        }
+        return combined;
+    }
+
+    long combinedErrors() {
+        long errors = 0;
+        for (Endpoint endpoint : endpoints) {
+            errors += endpoint.errors.sum();
+        }
+        return errors;
+    }
+
+    void run() throws Exception {
+        int concurrency = getIntProperty("concurrency", 16);
+        int rate = getIntProperty("rate", 0);
+        long warmup = getIntProperty("warmup", 10) * 1000000000L;
+        long duration = getIntProperty("duration", 60) * 1000000000L;
+        long interval = getIntProperty("interval", 10) * 1000000000L;
+        final long intervalNanos = rate > 0 ? 1000000000L * concurrency / rate : 0;
+        System.out.println("Target " + target + ", " + concurrency + " workers, " +
+                           (rate > 0 ? rate + " req/s" : "closed loop") + ", warmup " +
+                           warmup / 1000000000L + " s, duration " +
+                           duration / 1000000000L + " s");
+        gcMonitor.start();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    worker(intervalNanos);
+                }
+
+            }, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        // Progress lines are per interval, the summary covers everything after the warmup
+        long startTime = System.nanoTime();
+        long warmupEnd = startTime + warmup;
+        long endTime = warmupEnd + duration;
+        Map<Endpoint, long[]> baseline = new HashMap<>();
+        Map<Endpoint, Long> baselineErrors = new HashMap<>();
+        long baselinePauses = 0;
+        long baselinePauseMillis = 0;
+        boolean warmingUp = true;
+        long[] previous = combinedLatencies();
+        long previousErrors = 0;
+        long previousPauses = 0;
+        long previousPauseMillis = 0;
+        long previousTime = startTime;
+        while (previousTime < endTime) {
+            if (warmingUp && previousTime >= warmupEnd) {
+                for (Endpoint endpoint : endpoints) {
+                    baseline.put(endpoint, endpoint.latency.snapshot());
+                    baselineErrors.put(endpoint, endpoint.errors.sum());
+                }
+                baselinePauses = gcMonitor.pauses.sum();
+                baselinePauseMillis = gcMonitor.pauseMillis.sum();
+                warmupEnd = previousTime;
+                warmingUp = false;
+            }
+            long next = Math.min(previousTime + interval, warmingUp ? warmupEnd : endTime);
+            Thread.sleep(Math.max(0, (next - System.nanoTime() + 999999) / 1000000));
+            long now = System.nanoTime();
+            long[] current = combinedLatencies();
+            long errors = combinedErrors();
+            long pauses = gcMonitor.pauses.sum();
+            long pauseMillis = gcMonitor.pauseMillis.sum();
+            System.out.println(String.format("%6d s ", (now - startTime) / 1000000000L) +
+                               (warmingUp ? "(warmup) " : "") +
+                               report(Histogram.difference(current, previous),
+                                      errors - previousErrors,
+                                      (now - previousTime) / 1e9) +
+                               "  gc " + (pauses - previousPauses) + " pauses " +
+                               (pauseMillis - previousPauseMillis) + " ms max " +
+                               gcMonitor.maxPauseMillis.getAndSet(0) + " ms");
+            previous = current;
+            previousErrors = errors;
+            previousPauses = pauses;
+            previousPauseMillis = pauseMillis;
+            previousTime = now;
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(10000);
+        }
+
+        double seconds = (previousTime - warmupEnd) / 1e9;
+        System.out.println(String.format("%nSummary, excluding warmup (%.1f s)", seconds));
+        long[] all = new long[previous.length];
+        long allErrors = 0;
+        for (Endpoint endpoint : endpoints) {
+            long[] latencies = Histogram.difference(endpoint.latency.snapshot(),
+                                                    baseline.get(endpoint));
+            long errors = endpoint.errors.sum() - baselineErrors.get(endpoint);
+            System.out.println(String.format("%-10s", endpoint.name) +
+                               report(latencies, errors, seconds));
+            for (int i = 0; i < all.length; i++) {
+                all[i] += latencies[i];
+            }
+            allErrors += errors;
+        }
+        System.out.println(String.format("%-10s", "all") + report(all, allErrors, seconds));
+        System.out.println("GC: " + (gcMonitor.pauses.sum() - baselinePauses) + " pauses, " +
+                           (gcMonitor.pauseMillis.sum() - baselinePauseMillis) + " ms total");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+}
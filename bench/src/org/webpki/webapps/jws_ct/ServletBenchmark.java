@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.webpki.json.JSONObjectWriter;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+/**
+ * End-to-end doPost() of the servlets, including page rendering.
+ *
+ * The key caches are warm after the first call so this measures the
+ * steady state of a server where users stick to the default keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServletBenchmark {
+
+    static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    @Param({"ES256", "HS256", "RS256"})
+    String algorithm;
+
+    @Param({"10", "1000"})
+    int size;
+
+    CreateServlet createServlet = new CreateServlet();
+    ValidateServlet validateServlet = new ValidateServlet();
+    HashServlet hashServlet = new HashServlet();
+    JsonSignServlet jsonSignServlet = new JsonSignServlet();
+
+    Map<String, String> createParameters = new HashMap<>();
+    Map<String, String> validateParameters = new HashMap<>();
+    Map<String, String> hashParameters = new HashMap<>();
+    byte[] jsonSignRequest;
+
+    @Setup
+    public void setup() throws Exception {
+        String document = BenchmarkData.document("wide", size);
+        String privateKey = BenchmarkData.privateKey(algorithm);
+        boolean symmetric = algorithm.startsWith("HS");
+
+        createParameters.put(CreateServlet.PRM_JSON_DATA, document);
+        createParameters.put(CreateServlet.PRM_JWS_EXTRA, "{}");
+        createParameters.put(CreateServlet.PRM_SIG_LABEL, CreateServlet.DEFAULT_SIG_LBL);
+        createParameters.put(CreateServlet.PRM_ALGORITHM, algorithm);
+        createParameters.put(symmetric ?
+                CreateServlet.PRM_SECRET_KEY : CreateServlet.PRM_PRIVATE_KEY, privateKey);
+
+        JSONObjectWriter signRequest = new JSONObjectWriter(
+                JSONParser.parse("{\"" + JsonSignServlet.REQ_DATA + "\":" + document + "}"))
+            .setString(JsonSignServlet.REQ_ALGORITHM, algorithm)
+            .setString(JsonSignServlet.REQ_KEY, privateKey);
+        jsonSignRequest = signRequest.serializeToBytes(JSONOutputFormats.NORMALIZED);
+
+        // Use the JSON API for creating the signed object to validate
+        ServletMocks.CountingOutputStream signed = check(jsonSignServlet,
+                                                         jsonSignRequest,
+                                                         JsonSignServlet.JSON_CONTENT_TYPE,
+                                                         null);
+        validateParameters.put(ValidateServlet.JWS_OBJECT,
+                               new String(signed.copy.toByteArray(), "utf-8"));
+        validateParameters.put(ValidateServlet.JWS_SIGN_LABL, CreateServlet.DEFAULT_SIG_LBL);
+        validateParameters.put(ValidateServlet.JWS_VALIDATION_KEY,
+                               BenchmarkData.publicKey(algorithm));
+
+        hashParameters.put(HashServlet.JSON_DATA, document);
+        hashParameters.put(HashServlet.HASH_ALGORITHM, "S256");
+
+        check(createServlet, null, FORM_CONTENT_TYPE, createParameters);
+        check(validateServlet, null, FORM_CONTENT_TYPE, validateParameters);
+        check(hashServlet, null, FORM_CONTENT_TYPE, hashParameters);
+    }
+
+    // The servlets report errors as pages so a bad setup would otherwise go unnoticed
+    static ServletMocks.CountingOutputStream check(HttpServlet servlet,
+                                                   byte[] body,
+                                                   String contentType,
+                                                   Map<String, String> parameters)
+            throws Exception {
+        ServletMocks.CountingOutputStream out = new ServletMocks.CountingOutputStream();
+        out.copy = new ByteArrayOutputStream();
+        post(servlet, body, contentType, parameters, out);
+        String result = new String(out.copy.toByteArray(), "utf-8");
+        if (result.contains("Something went wrong") ||
+            result.startsWith("{\"" + JsonSignServlet.RSP_ERROR + "\"")) {
+            throw new IllegalStateException(servlet.getClass().getSimpleName() + ": " + result);
+        }
+        return out;
+    }
+
+    static long post(HttpServlet servlet,
+                     byte[] body,
+                     String contentType,
+                     Map<String, String> parameters,
+                     ServletMocks.CountingOutputStream out) throws Exception {
+        if (parameters == null) {
+            parameters = new HashMap<>();
+        }
+        servlet.service(ServletMocks.request(contentType, parameters, body),
+                        ServletMocks.response(out));
+        return out.count;
+    }
+
+    @Benchmark
+    public long create() throws Exception {
+        return post(createServlet, null, FORM_CONTENT_TYPE, createParameters,
+                    new ServletMocks.CountingOutputStream());
+    }
+
+    @Benchmark
+    public long validate() throws Exception {
+        return post(validateServlet, null, FORM_CONTENT_TYPE, validateParameters,
+                    new ServletMocks.CountingOutputStream());
+    }
+
+    @Benchmark
+    public long hash() throws Exception {
+        return post(hashServlet, null, FORM_CONTENT_TYPE, hashParameters,
+                    new ServletMocks.CountingOutputStream());
+    }
+
+    @Benchmark
+    public long jsonSign() throws Exception {
+        return post(jsonSignServlet, jsonSignRequest, JsonSignServlet.JSON_CONTENT_TYPE, null,
+                    new ServletMocks.CountingOutputStream());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal request/response objects for driving doPost() without a container.
+ *
+ * Only the methods the servlets actually call do something; everything else
+ * returns null/0/false.
+ */
+class ServletMocks {
+
+    static class CountingOutputStream extends ServletOutputStream {
+
+        long count;
+        ByteArrayOutputStream copy;     // Only set when checking the output
+
+        @Override
+        public void write(int b) {
+            count++;
+            if (copy != null) {
+                copy.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            if (copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+
+    static class BodyInputStream extends ServletInputStream {
+
+        ByteArrayInputStream in;
+
+        BodyInputStream(byte[] body) {
+            in = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    static HttpServletRequest request(final String contentType,
+                                      final Map<String, String> parameters,
+                                      final byte[] body) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ServletMocks.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                switch (method.getName()) {
+                    case "getContentType":
+                        return contentType;
+                    case "getParameter":
+                        return parameters.get((String) args[0]);
+                    case "getParameterMap":
+                        return Collections.unmodifiableMap(parameters);
+                    case "getMethod":
+                        return "POST";
+                    case "getInputStream":
+                        return new BodyInputStream(body == null ? new byte[0] : body);
+                    case "getContentLength":
+                        return body == null ? -1 : body.length;
+                    case "getContentLengthLong":
+                        return body == null ? -1L : (long) body.length;
+                    case "getCharacterEncoding":
+                        return "utf-8";
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    static HttpServletResponse response(CountingOutputStream out) {
+        return response(out, null);
+    }
+
+    // As above but also collects the headers that were set
+    static HttpServletResponse response(final CountingOutputStream out,
+                                        final Map<String, String> headers) {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                ServletMocks.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return out;
+                    case "getCharacterEncoding":
+                        return "utf-8";
+                    case "setHeader":
+                        if (headers != null) {
+                            headers.put((String) args[0], (String) args[1]);
+                        }
+                        return null;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+}
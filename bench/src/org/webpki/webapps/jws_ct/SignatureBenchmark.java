@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.security.KeyPair;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.webpki.crypto.AsymSignatureAlgorithms;
+import org.webpki.crypto.HmacAlgorithms;
+import org.webpki.crypto.SignatureAlgorithms;
+
+import org.webpki.jose.jws.JWSAsymKeySigner;
+import org.webpki.jose.jws.JWSAsymSignatureValidator;
+import org.webpki.jose.jws.JWSDecoder;
+import org.webpki.jose.jws.JWSHmacSigner;
+import org.webpki.jose.jws.JWSHmacValidator;
+import org.webpki.jose.jws.JWSSigner;
+import org.webpki.jose.jws.JWSValidator;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONObjectWriter;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+import org.webpki.util.PEMDecoder;
+
+/**
+ * Sign and validate the sample document with every supported algorithm.
+ *
+ * "validate" includes parsing the signed object and recreating the
+ * canonical payload, i.e. what ValidateServlet does per request.
+ * "validateRaw" is the batch mode variant which cuts the signature out of
+ * the raw input instead (the canonical cache is bypassed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    static final String SIGNATURE_LABEL = CreateServlet.DEFAULT_SIG_LBL;
+
+    @Param({"HS256", "HS384", "HS512",
+            "Ed25519", "Ed448",
+            "ES256", "ES384", "ES512",
+            "RS256", "RS384", "RS512",
+            "PS256", "PS384", "PS512"})
+    String algorithm;
+
+    @Param({"wide"})
+    String shape;
+
+    @Param({"20"})
+    int size;
+
+    JWSSigner signer;
+    JWSValidator validator;
+    byte[] payload;
+    byte[] signedObject;
+
+    @Setup
+    public void setup() throws Exception {
+        SignatureAlgorithms signatureAlgorithm = CreateServlet.getSignatureAlgorithm(algorithm);
+        if (signatureAlgorithm.isSymmetric()) {
+            byte[] secretKey =
+                    CreateServlet.decodeSymmetricKey(BenchmarkData.privateKey(algorithm));
+            signer = new JWSHmacSigner(secretKey, (HmacAlgorithms)signatureAlgorithm);
+            validator = new JWSHmacValidator(secretKey);
+        } else {
+            KeyPair keyPair = PEMDecoder.getKeyPair(
+                    BenchmarkData.privateKey(algorithm).getBytes("utf-8"));
+            signer = new JWSAsymKeySigner(keyPair.getPrivate(),
+                                          (AsymSignatureAlgorithms)signatureAlgorithm);
+            validator = new JWSAsymSignatureValidator(keyPair.getPublic());
+        }
+        JSONObjectReader reader = JSONParser.parse(BenchmarkData.document(shape, size));
+        payload = reader.serializeToBytes(JSONOutputFormats.CANONICALIZED);
+        new JSONObjectWriter(reader).setString(SIGNATURE_LABEL, signer.sign(payload, true));
+        signedObject = reader.serializeToBytes(JSONOutputFormats.NORMALIZED);
+    }
+
+    @Benchmark
+    public String sign() throws Exception {
+        return signer.sign(payload, true);
+    }
+
+    @Benchmark
+    public JWSDecoder validate() throws Exception {
+        JSONObjectReader reader = JSONParser.parse(signedObject);
+        JWSDecoder decoder = new JWSDecoder(reader, SIGNATURE_LABEL);
+        validator.validate(decoder);
+        return decoder;
+    }
+
+    @Benchmark
+    public JWSDecoder validateRaw() throws Exception {
+        RawSignedObject rawSigned = RawSignedObject.split(signedObject, SIGNATURE_LABEL);
+        JWSDecoder decoder = new JWSDecoder(rawSigned.jwsString);
+        validator.validate(decoder,
+                           CreateServlet.canonicalize(JSONParser.parse(rawSigned.unsigned)));
+        return decoder;
+    }
+}
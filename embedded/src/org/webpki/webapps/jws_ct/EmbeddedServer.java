@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+import java.nio.file.Files;
+
+import java.util.List;
+
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+
+import org.apache.catalina.connector.Connector;
+
+import org.apache.catalina.startup.Tomcat;
+
+import org.apache.coyote.AbstractProtocol;
+
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+
+/**
+ * Runs the war (web.xml with JwsCtService as listener) in an embedded Tomcat.
+ *
+ * Requests are handled on virtual threads.  Configuration is through system
+ * properties:
+ *<pre>
+ *   jwsct.war             The application war, default dist/jws-ct.war
+ *   jwsct.port            HTTP port, default 8080
+ *   jwsct.maxConnections  Open connections before the acceptor blocks, default 8192
+ *   jwsct.acceptCount     OS backlog beyond that, default 100
+ *   jwsct.maxWorkers      Concurrently executing requests, default 0 (= unlimited)
+ *   jwsct.baseDir         Work directory, default a new temporary directory
+ *   jwsct.training        Fetch every page once and exit, see "ant cds"
+ *</pre>
+ * Startup is kept short by not scanning jars, TLDs or annotations (the
+ * application uses none of them).  JSP is not available so the index page
+ * redirect is done by a servlet instead.
+ */
+public class EmbeddedServer {
+
+    static Logger logger = Logger.getLogger(EmbeddedServer.class.getName());
+
+    static final String PROPERTY_PREFIX = "jwsct.";
+
+    static final String[] TRAINING_PAGES = {
+        "home", "create", "validate", "hash", "keyconv", "dumpasn1", "webcrypto", "metrics"
+    };
+
+    /**
+     * Virtual thread per task, optionally with a cap on how many may run.
+     *
+     * A permit is acquired in the new thread so the poller never blocks;
+     * parked virtual threads waiting for a permit cost next to nothing.
+     */
+    static class WorkerExecutor extends AbstractExecutorService {
+
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("jwsct-exec-");
+        Semaphore workers;
+
+        WorkerExecutor(int maxWorkers) {
+            if (maxWorkers > 0) {
+                workers = new Semaphore(maxWorkers);
+            }
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (workers == null) {
+                executor.execute(command);
+                return;
+            }
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    workers.acquireUninterruptibly();
+                    try {
+                        command.run();
+                    } finally {
+                        workers.release();
+                    }
+                }
+
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+
+    static class RootServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            response.sendRedirect("home");
+        }
+    }
+
+    static String getProperty(String name, String defaultValue) {
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    static int getIntProperty(String name, int defaultValue) {
+        return Integer.getInteger(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.nanoTime();
+        File war = new File(getProperty("war", "dist/jws-ct.war"));
+        if (!war.isFile()) {
+            throw new IOException("Missing application: " + war.getAbsolutePath());
+        }
+        String baseDir = getProperty("baseDir", null);
+        if (baseDir == null) {
+            baseDir = Files.createTempDirectory("jws-ct").toString();
+        }
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir);
+        tomcat.setPort(getIntProperty("port", 8080));
+        Connector connector = tomcat.getConnector();
+        AbstractProtocol<?> protocol = (AbstractProtocol<?>) connector.getProtocolHandler();
+        protocol.setMaxConnections(getIntProperty("maxConnections", 8192));
+        protocol.setAcceptCount(getIntProperty("acceptCount", 100));
+        protocol.setExecutor(new WorkerExecutor(getIntProperty("maxWorkers", 0)));
+
+        // The default web.xml would add the JSP servlet which we do not have
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        Context context = tomcat.addWebapp("", war.getAbsolutePath());
+        Tomcat.addDefaultMimeTypeMappings(context);
+        Tomcat.addServlet(context, "default", "org.apache.catalina.servlets.DefaultServlet")
+            .setLoadOnStartup(1);
+        context.addServletMappingDecoded("/", "default");
+        Tomcat.addServlet(context, "root", new RootServlet());
+        context.addServletMappingDecoded("", "root");
+        context.addServletMappingDecoded("/index.jsp", "root");
+
+        StandardJarScanner jarScanner = new StandardJarScanner();
+        jarScanner.setScanClassPath(false);
+        jarScanner.setScanManifest(false);
+        context.setJarScanner(jarScanner);
+        context.setIgnoreAnnotations(true);
+
+        tomcat.start();
+        logger.info("Started on port " + connector.getLocalPort() +
+                    " in " + (System.nanoTime() - startTime) / 1000000 + " ms (JVM uptime " +
+                    ManagementFactory.getRuntimeMXBean().getUptime() + " ms)");
+        if (Boolean.getBoolean(PROPERTY_PREFIX + "training")) {
+            train(connector.getLocalPort());
+            tomcat.stop();
+            tomcat.destroy();
+            // Exit explicitly, this is where -XX:ArchiveClassesAtExit does its work
+            System.exit(0);
+        }
+        tomcat.getServer().await();
+    }
+
+    // Load the classes needed for serving pages into a class data sharing archive
+    static void train(int port) throws IOException {
+        for (String page : TRAINING_PAGES) {
+            HttpURLConnection connection = (HttpURLConnection)
+                    URI.create("http://localhost:" + port + "/" + page).toURL().openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            InputStream in = connection.getInputStream();
+            while (in.read() >= 0) {
+            }
+            in.close();
+            logger.info("Training: " + page + " " + connection.getResponseCode());
+        }
+    }
+}
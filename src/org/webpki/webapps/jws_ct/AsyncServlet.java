@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Base for servlets doing CPU heavy work per POST.
+ *
+ * The request body is received with non-blocking I/O, processing runs on the
+ * CryptoExecutor and the finished response is handed back to the container
+ * for writing.  Container threads are thus only used for I/O and slow
+ * clients cannot tie up signing capacity, neither while sending nor while
+ * receiving.  The exception is pages too large to be buffered (see
+ * BufferedResponse) which are streamed by the crypto thread.
+ *
+ * process() gets the body and form parameters from memory and a buffered
+ * response, i.e. it is written like a regular blocking doPost().  Gzip
+ * compressed bodies (see CompressionFilter) are inflated synchronously on
+ * the container thread from within setReadListener() and without async
+ * support (like in the benchmarks) everything is synchronous.
+ */
+abstract class AsyncServlet extends CachedPageServlet {
+
+    static Logger logger = Logger.getLogger(AsyncServlet.class.getName());
+
+    private static final long serialVersionUID = 1L;
+
+    // Enforces the body time limit since there is no thread waiting for the body
+    static ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jws-ct-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    static {
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    Metrics.Requests metrics;
+
+    AsyncServlet(Metrics.Requests metrics) {
+        this.metrics = metrics;
+    }
+
+    abstract void process(HttpServletRequest request,
+                          HttpServletResponse response,
+                          long startTime) throws IOException, ServletException;
+
+    // Streaming modes are not buffered, they are processed as they arrive
+    boolean isStreaming(HttpServletRequest request) {
+        return false;
+    }
+
+    static void finish(HttpServletResponse response) throws IOException {
+        if (response instanceof CompressionFilter.CompressingResponse) {
+            ((CompressionFilter.CompressingResponse) response).finish();
+        }
+    }
+
+    static class BufferedRequest extends HttpServletRequestWrapper {
+
+        byte[] body;
+        int length;
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+
+        BufferedRequest(HttpServletRequest request, byte[] body, int length)
+                throws IOException {
+            super(request);
+            this.body = body;
+            this.length = length;
+            String charset = getCharacterEncoding() == null ? "utf-8" : getCharacterEncoding();
+            LinkedHashMap<String, ArrayList<String>> collector = new LinkedHashMap<>();
+            CompressionFilter.InflatingRequest.addParameters(collector, getQueryString(), charset);
+            String contentType = getContentType();
+            if (contentType != null &&
+                contentType.startsWith("application/x-www-form-urlencoded")) {
+                // Form data is US-ASCII by definition
+                CompressionFilter.InflatingRequest.addParameters(
+                        collector, new String(body, 0, length, "us-ascii"), charset);
+            }
+            for (Map.Entry<String, ArrayList<String>> entry : collector.entrySet()) {
+                parameters.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+            }
+        }
+
+        @Override
+        public int getContentLength() {
+            return length;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return length;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            final ByteArrayInputStream in = new ByteArrayInputStream(body, 0, length);
+            return new ServletInputStream() {
+
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    // The body is in memory
+                    try {
+                        readListener.onDataAvailable();
+                        readListener.onAllDataRead();
+                    } catch (IOException e) {
+                        readListener.onError(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(getInputStream(),
+                    getCharacterEncoding() == null ? "utf-8" : getCharacterEncoding()));
+        }
+
+        @Override
+        public String getParameter(String name) {
+            String[] values = parameters.get(name);
+            return values == null ? null : values[0];
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.unmodifiableMap(parameters);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(parameters.keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return parameters.get(name);
+        }
+    }
+
+    // Headers go to the real response right away and the body when the
+    // processing is done, unless the body grows beyond MAX_BUFFERED.  Large
+    // pages are streamed by the processing thread as in a blocking servlet
+    // since buffering them all would defeat the streaming in HTML.Page.
+    static class BufferedResponse extends HttpServletResponseWrapper {
+
+        static final int MAX_BUFFERED = 256 * 1024;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(CanonicalWriter.BUFFER_SIZE);
+        OutputStream streaming;         // Set when the body became too large
+        ServletOutputStream bodyStream;
+        PrintWriter writer;
+
+        OutputStream sink = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (streaming == null && body.size() + len > MAX_BUFFERED) {
+                    streaming = getResponse().getOutputStream();
+                    body.writeTo(streaming);
+                    body = null;
+                }
+                if (streaming == null) {
+                    body.write(b, off, len);
+                } else {
+                    streaming.write(b, off, len);
+                }
+            }
+
+        };
+
+        BufferedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() already called");
+            }
+            if (bodyStream == null) {
+                bodyStream = new ServletOutputStream() {
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        sink.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        sink.write(b, off, len);
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        // Writing never blocks from the point of view of the caller
+                        try {
+                            writeListener.onWritePossible();
+                        } catch (IOException e) {
+                            writeListener.onError(e);
+                        }
+                    }
+                };
+            }
+            return bodyStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (bodyStream != null) {
+                    throw new IllegalStateException("getOutputStream() already called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(sink, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return streaming != null;
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (streaming != null) {
+                throw new IllegalStateException("Response already committed");
+            }
+            body.reset();
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            super.reset();
+        }
+
+        // Whatever is still buffered
+        void writeBody() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (streaming == null) {
+                body.writeTo(getResponse().getOutputStream());
+            }
+        }
+    }
+
+    class Exchange implements ReadListener, Runnable {
+
+        static final int RECEIVING  = 0;
+        static final int PROCESSING = 1;
+        static final int DONE       = 2;
+
+        // Whoever moves the state away from RECEIVING owns the response
+        AtomicInteger state = new AtomicInteger(RECEIVING);
+
+        HttpServletRequest request;
+        HttpServletResponse response;
+        long startTime;
+        AsyncContext asyncContext;
+        ServletInputStream in;
+        ScheduledFuture<?> timeout;
+        byte[] body;
+        int length;
+
+        Exchange(HttpServletRequest request, HttpServletResponse response, long startTime) {
+            this.request = request;
+            this.response = response;
+            this.startTime = startTime;
+        }
+
+        void start() throws IOException {
+            long contentLength = request.getContentLengthLong();
+            asyncContext = request.startAsync(request, response);
+            asyncContext.setTimeout(0);
+            if (contentLength > JwsCtService.maxBodySize) {
+                state.set(DONE);
+                fail(RequestBody.tooLarge());
+                return;
+            }
+            body = new byte[contentLength < 0 ? CanonicalWriter.BUFFER_SIZE : (int) contentLength];
+            timeout = watchdog.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (state.compareAndSet(RECEIVING, DONE)) {
+                        fail(new RequestBody.LimitException(HttpServletResponse.SC_REQUEST_TIMEOUT,
+                                                            "Request body not received within " +
+                                                                JwsCtService.bodyTimeout +
+                                                                " seconds"));
+                    }
+                }
+
+            }, JwsCtService.bodyTimeout, TimeUnit.SECONDS);
+            in = request.getInputStream();
+            // An inflating stream calls back right away, i.e. the entire body
+            // is inflated on this (container) thread before this call returns
+            in.setReadListener(this);
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            try {
+                while (in.isReady() && !in.isFinished()) {
+                    if (length == body.length) {
+                        body = Arrays.copyOf(body, (int) Math.min(body.length * 2L + 1,
+                                                                  JwsCtService.maxBodySize + 1L));
+                    }
+                    int n = in.read(body, length, body.length - length);
+                    if (n > 0 && (length += n) > JwsCtService.maxBodySize) {
+                        throw RequestBody.tooLarge();
+                    }
+                }
+            } catch (IOException e) {
+                // Limits, but also corrupt or truncated gzip data which the
+                // client should hear about as well
+                if (state.compareAndSet(RECEIVING, DONE)) {
+                    timeout.cancel(false);
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (state.compareAndSet(RECEIVING, PROCESSING)) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                try {
+                    CryptoExecutor.execute(this);
+                } catch (RequestBody.LimitException e) {
+                    state.set(DONE);
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // The container lost the connection, there is nobody to tell
+            if (state.compareAndSet(RECEIVING, DONE)) {
+                timeout.cancel(false);
+                metrics.error();
+                metrics.done(startTime);
+                complete();
+            }
+        }
+
+        @Override
+        public void run() {
+            final BufferedResponse bufferedResponse = new BufferedResponse(response);
+            try {
+                process(new BufferedRequest(request, body, length), bufferedResponse, startTime);
+            } catch (Exception e) {
+                // process() reports its own errors so this is about writing the report
+                logger.log(Level.SEVERE, "Processing failed", e);
+            } finally {
+                body = null;
+                asyncContext.start(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            bufferedResponse.writeBody();
+                        } catch (IOException e) {
+                            // The client went away
+                        }
+                        state.set(DONE);
+                        complete();
+                    }
+
+                });
+            }
+        }
+
+        // Receiving failed so the request itself is at fault
+        void fail(Exception e) {
+            metrics.error();
+            response.setStatus(RequestBody.status(e));
+            try {
+                HTML.errorPage(response, e);
+            } catch (IOException | ServletException e2) {
+                // The client went away
+            }
+            metrics.done(startTime);
+            complete();
+        }
+
+        void complete() {
+            try {
+                finish(response);
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        long startTime = System.nanoTime();
+        request.setCharacterEncoding("utf-8");
+        if (!request.isAsyncSupported() || isStreaming(request)) {
+            process(request, response, startTime);
+            return;
+        }
+        new Exchange(request, response, startTime).start();
+    }
+}
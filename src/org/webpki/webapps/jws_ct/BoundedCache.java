@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded concurrent cache with approximate LRU eviction and optional TTL.
+ *
+ * Lookups are lock-free.  When the cache grows beyond its limits (entries
+ * and optionally the total weight of the values), a single thread (the
+ * others just continue) removes the least recently used entries until the
+ * cache is back at 90% of the limits.  Two threads missing on the
+ * same key at the same time may both load it; the loaders used here are
+ * idempotent so that only costs some extra CPU.
+ */
+class BoundedCache<K, V> {
+
+    interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    static class Entry<V> {
+        V value;
+        long expires;                  // System.nanoTime() based, 0 = never
+        long weight;
+        volatile long lastAccess;
+
+        Entry(V value, long expires, long weight, long lastAccess) {
+            this.value = value;
+            this.expires = expires;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    String name;
+    int maxEntries;
+    long ttlNanos;                     // 0 = entries never expire
+
+    Weigher<V> weigher;                // Null = only the number of entries counts
+    long maxWeight;
+    AtomicLong weight = new AtomicLong();
+
+    ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    AtomicLong clock = new AtomicLong();
+    ReentrantLock evictionLock = new ReentrantLock();
+
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+    LongAdder evictions = new LongAdder();
+    LongAdder expirations = new LongAdder();
+
+    BoundedCache(String name, int maxEntries) {
+        this(name, maxEntries, 0);
+    }
+
+    BoundedCache(String name, int maxEntries, long ttlMillis) {
+        this(name, maxEntries, ttlMillis, 0, null);
+    }
+
+    BoundedCache(String name, int maxEntries, long ttlMillis, long maxWeight, Weigher<V> weigher) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    boolean overLimit(int entryLimit, long weightLimit) {
+        return entries.size() > entryLimit || (weigher != null && weight.get() > weightLimit);
+    }
+
+    boolean remove(K key, Entry<V> entry) {
+        if (entries.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+            return true;
+        }
+        return false;
+    }
+
+    V get(K key, Loader<K, V> loader) throws Exception {
+        V value = getIfPresent(key);
+        if (value == null) {
+            value = loader.load(key);
+            put(key, value, ttlNanos);
+        }
+        return value;
+    }
+
+    // Lookup without loading, counts as a hit or a miss
+    V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expires == 0 || entry.expires - System.nanoTime() > 0) {
+                hits.increment();
+                entry.lastAccess = clock.incrementAndGet();
+                return entry.value;
+            }
+            if (remove(key, entry)) {
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // For values that should live shorter (or longer) than the default TTL
+    void put(K key, V value, long ttlNanos) {
+        Entry<V> newEntry = new Entry<V>(value,
+                                         ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos,
+                                         weigher == null ? 0 : weigher.weigh(value),
+                                         clock.incrementAndGet());
+        Entry<V> oldEntry = entries.put(key, newEntry);
+        weight.addAndGet(oldEntry == null ? newEntry.weight : newEntry.weight - oldEntry.weight);
+        if (overLimit(maxEntries, maxWeight)) {
+            evict();
+        }
+    }
+
+    void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int target = maxEntries - maxEntries / 10;
+            long weightTarget = maxWeight - maxWeight / 10;
+            if (!overLimit(target, weightTarget)) {
+                return;
+            }
+            ArrayList<Map.Entry<K, Entry<V>>> candidates = new ArrayList<>(entries.entrySet());
+            Collections.sort(candidates, new Comparator<Map.Entry<K, Entry<V>>>() {
+                @Override
+                public int compare(Map.Entry<K, Entry<V>> o1, Map.Entry<K, Entry<V>> o2) {
+                    return Long.compare(o1.getValue().lastAccess, o2.getValue().lastAccess);
+                }
+            });
+            for (Map.Entry<K, Entry<V>> candidate : candidates) {
+                if (!overLimit(target, weightTarget)) {
+                    break;
+                }
+                if (remove(candidate.getKey(), candidate.getValue())) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void clear() {
+        for (K key : entries.keySet()) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                remove(key, entry);
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getWeight() {
+        return weight.get();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": size=" + size() + " hits=" + getHits() +
+               " misses=" + getMisses() + " evictions=" + getEvictions() +
+               " expirations=" + getExpirations() +
+               (weigher == null ? "" : " weight=" + getWeight());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Enumeration;
+
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.util.Base64URL;
+
+/**
+ * Immutable pre-rendered response with a precompressed variant.
+ *
+ * Served with strong ETags (one per encoding) and "no-cache" so that browsers
+ * always revalidate, which costs a 304 without a body until the application
+ * is redeployed.
+ */
+class CachedPage {
+
+    static final String HTML_CONTENT_TYPE = "text/html; charset=utf-8";
+
+    // For resources that are never changed, only replaced under a new name
+    static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    String contentType;
+    String cacheControl = "no-cache";
+
+    byte[] data;
+    byte[] gzipped;
+
+    String version;     // Content hash
+
+    String etag;
+    String gzipEtag;
+
+    CachedPage(String html) throws IOException {
+        this(html.getBytes("utf-8"), HTML_CONTENT_TYPE);
+    }
+
+    CachedPage(byte[] data, String contentType) throws IOException {
+        this.data = data;
+        this.contentType = contentType;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 3 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        gzip.write(data);
+        gzip.close();
+        gzipped = buffer.toByteArray();
+        version = Base64URL.encode(HashAlgorithms.SHA256.digest(data)).substring(0, 22);
+        etag = "\"" + version + "\"";
+        gzipEtag = "\"" + version + "-gz\"";
+    }
+
+    // Rendered on first use since pages may depend on lazily created demo
+    // data.  Racing threads may render the page twice but the result is the same.
+    abstract static class Holder {
+
+        volatile CachedPage page;
+
+        abstract CachedPage renderPage() throws IOException;
+
+        CachedPage get() throws IOException {
+            CachedPage current = page;
+            if (current == null) {
+                page = current = renderPage();
+            }
+            return current;
+        }
+    }
+
+    // Accept-Encoding is a list of "coding;q=value" where q=0 means "not
+    // acceptable".  An explicit gzip entry overrides "*" and other codings
+    // like "x-gzip" do not count.
+    static boolean acceptsGzip(HttpServletRequest request) {
+        boolean wildcard = false;
+        Enumeration<String> headers = request.getHeaders("Accept-Encoding");
+        while (headers != null && headers.hasMoreElements()) {
+            for (String element : headers.nextElement().split(",")) {
+                String[] parameters = element.split(";");
+                String coding = parameters[0].trim();
+                if (coding.equalsIgnoreCase("gzip")) {
+                    return qValue(parameters) > 0;
+                }
+                if (coding.equals("*")) {
+                    wildcard = qValue(parameters) > 0;
+                }
+            }
+        }
+        return wildcard;
+    }
+
+    static double qValue(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;   // Uncompressed always works
+                }
+            }
+        }
+        return 1;
+    }
+
+    static boolean matches(String ifNoneMatch, String etag) {
+        return ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+    }
+
+    void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = acceptsGzip(request) && gzipped.length < data.length;
+        String currentEtag = gzip ? gzipEtag : etag;
+        response.setHeader("ETag", currentEtag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, currentEtag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(contentType);
+        byte[] body = data;
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = gzipped;
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
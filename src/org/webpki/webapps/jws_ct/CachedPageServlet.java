@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet whose GET response is a constant page (see CachedPage).
+ */
+abstract class CachedPageServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    CachedPage.Holder page = new CachedPage.Holder() {
+
+        @Override
+        CachedPage renderPage() throws IOException {
+            return CachedPageServlet.this.renderPage();
+        }
+
+    };
+
+    abstract CachedPage renderPage() throws IOException;
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        page.get().serve(request, response);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONParser;
+
+import org.webpki.util.Base64URL;
+
+/**
+ * RFC 8785 canonical forms cached by the SHA-256 of the raw JSON input.
+ *
+ * Clients frequently resubmit byte-identical data so the canonicalization
+ * (and for callers that do not need the parsed object, the parsing too) can
+ * be skipped.  SHA-256 rather than a cheaper hash is used since a collision
+ * would hand out the wrong data to be signed or hashed.  The cache is bounded
+ * by the total size of the stored canonical forms; large documents are not
+ * cached at all.
+ */
+class CanonicalCache {
+
+    static final int MAX_ENTRIES      = 4096;
+    static final long MAX_WEIGHT      = 32 * 1024 * 1024;
+    static final int MAX_ENTRY_SIZE   = 1024 * 1024;
+
+    // Key string, entry and map node overhead, roughly
+    static final int ENTRY_OVERHEAD   = 160;
+
+    static final BoundedCache<String, byte[]> cache =
+            new BoundedCache<>("Canonical cache", MAX_ENTRIES, 0, MAX_WEIGHT,
+                               new BoundedCache.Weigher<byte[]>() {
+
+        @Override
+        public long weigh(byte[] canonicalized) {
+            return canonicalized.length + ENTRY_OVERHEAD;
+        }
+
+    });
+
+    static boolean cacheable(byte[] rawJson) {
+        return rawJson.length <= MAX_ENTRY_SIZE;
+    }
+
+    static String getCacheKey(byte[] rawJson) throws IOException {
+        return Base64URL.encode(HashAlgorithms.SHA256.digest(rawJson));
+    }
+
+    /**
+     * Canonical form of already parsed JSON data.
+     *
+     * @param rawJson The data that <code>parsedJson</code> was parsed from
+     * @param parsedJson Only canonicalized on a cache miss
+     */
+    static byte[] getCanonical(byte[] rawJson, final JSONObjectReader parsedJson)
+            throws Exception {
+        if (!cacheable(rawJson)) {
+            return CreateServlet.canonicalize(parsedJson);
+        }
+        return cache.get(getCacheKey(rawJson), new BoundedCache.Loader<String, byte[]>() {
+
+            @Override
+            public byte[] load(String key) throws Exception {
+                return CreateServlet.canonicalize(parsedJson);
+            }
+
+        });
+    }
+
+    // As above but the data is only parsed on a cache miss
+    static byte[] getCanonical(final byte[] rawJson) throws Exception {
+        if (!cacheable(rawJson)) {
+            return CreateServlet.canonicalize(JSONParser.parse(rawJson));
+        }
+        return cache.get(getCacheKey(rawJson), new BoundedCache.Loader<String, byte[]>() {
+
+            @Override
+            public byte[] load(String key) throws Exception {
+                return CreateServlet.canonicalize(JSONParser.parse(rawJson));
+            }
+
+        });
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.json.JSONArrayReader;
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.NumberToJSON;
+
+/**
+ * RFC 8785 canonicalizer writing UTF-8 directly to an OutputStream.
+ *
+ * The output is produced in chunks of at most BUFFER_SIZE bytes so the
+ * canonical form never has to exist in memory as a whole.  The static
+ * helpers adapt MessageDigest objects to OutputStreams.
+ * The result is byte-for-byte identical to
+ * serializeToBytes(JSONOutputFormats.CANONICALIZED).
+ */
+class CanonicalWriter {
+
+    static final int BUFFER_SIZE = 8192;
+
+    static final byte[] HEX = {'0','1','2','3','4','5','6','7',
+                               '8','9','a','b','c','d','e','f'};
+
+    OutputStream out;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int pos;
+    long count;
+
+    CanonicalWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the canonical form of a JSON object to a stream.
+     *
+     * @return Number of bytes written
+     */
+    static long canonicalize(JSONObjectReader object, OutputStream out) throws IOException {
+        CanonicalWriter writer = new CanonicalWriter(out);
+        writer.writeObject(object);
+        writer.flush();
+        return writer.count;
+    }
+
+    static byte[] digest(JSONObjectReader object, HashAlgorithms hashAlgorithm)
+            throws IOException, GeneralSecurityException {
+        MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorithm.getJceName());
+        canonicalize(object, digestSink(messageDigest));
+        return messageDigest.digest();
+    }
+
+    static OutputStream digestSink(MessageDigest messageDigest) {
+        return new DigestOutputStream(OutputStream.nullOutputStream(), messageDigest);
+    }
+
+    // Feeds the same bytes to several digests, e.g. SHA-256 and SHA-512 in one pass
+    static OutputStream digestSink(final MessageDigest[] messageDigests) {
+        return new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                for (MessageDigest messageDigest : messageDigests) {
+                    messageDigest.update((byte) b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (MessageDigest messageDigest : messageDigests) {
+                    messageDigest.update(b, off, len);
+                }
+            }
+        };
+    }
+
+    void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            count += pos;
+            pos = 0;
+        }
+        out.flush();
+    }
+
+    void writeByte(int b) throws IOException {
+        if (pos == BUFFER_SIZE) {
+            out.write(buffer, 0, pos);
+            count += pos;
+            pos = 0;
+        }
+        buffer[pos++] = (byte) b;
+    }
+
+    void writeAscii(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            writeByte(ascii.charAt(i));
+        }
+    }
+
+    void writeObject(JSONObjectReader object) throws IOException {
+        String[] properties = object.getProperties();
+        // RFC 8785: sort on UTF-16 code units which is what String.compareTo() does
+        Arrays.sort(properties);
+        writeByte('{');
+        boolean next = false;
+        for (String property : properties) {
+            if (next) {
+                writeByte(',');
+            }
+            next = true;
+            writeString(property);
+            writeByte(':');
+            switch (object.getPropertyType(property)) {
+                case OBJECT:
+                    writeObject(object.getObject(property));
+                    break;
+                case ARRAY:
+                    writeArray(object.getArray(property));
+                    break;
+                case STRING:
+                    writeString(object.getString(property));
+                    break;
+                case NUMBER:
+                    writeAscii(NumberToJSON.serializeNumber(object.getDouble(property)));
+                    break;
+                case BOOLEAN:
+                    writeAscii(Boolean.toString(object.getBoolean(property)));
+                    break;
+                default:
+                    object.getIfNULL(property);
+                    writeAscii("null");
+            }
+        }
+        writeByte('}');
+    }
+
+    void writeArray(JSONArrayReader array) throws IOException {
+        writeByte('[');
+        boolean next = false;
+        while (array.hasMore()) {
+            if (next) {
+                writeByte(',');
+            }
+            next = true;
+            switch (array.getElementType()) {
+                case OBJECT:
+                    writeObject(array.getObject());
+                    break;
+                case ARRAY:
+                    writeArray(array.getArray());
+                    break;
+                case STRING:
+                    writeString(array.getString());
+                    break;
+                case NUMBER:
+                    writeAscii(NumberToJSON.serializeNumber(array.getDouble()));
+                    break;
+                case BOOLEAN:
+                    writeAscii(Boolean.toString(array.getBoolean()));
+                    break;
+                default:
+                    array.getIfNULL();
+                    writeAscii("null");
+            }
+        }
+        writeByte(']');
+    }
+
+    // ES6 JSON.stringify() string escaping, UTF-8 encoded on the fly
+    void writeString(String string) throws IOException {
+        writeByte('"');
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                        writeByte('\\');
+                        writeByte('"');
+                        break;
+                    case '\\':
+                        writeByte('\\');
+                        writeByte('\\');
+                        break;
+                    case '\b':
+                        writeByte('\\');
+                        writeByte('b');
+                        break;
+                    case '\f':
+                        writeByte('\\');
+                        writeByte('f');
+                        break;
+                    case '\n':
+                        writeByte('\\');
+                        writeByte('n');
+                        break;
+                    case '\r':
+                        writeByte('\\');
+                        writeByte('r');
+                        break;
+                    case '\t':
+                        writeByte('\\');
+                        writeByte('t');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writeAscii("\\u00");
+                            writeByte(HEX[c >> 4]);
+                            writeByte(HEX[c & 0xf]);
+                        } else {
+                            writeByte(c);
+                        }
+                }
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, String.getBytes() as used by the library writes '?'
+                writeByte('?');
+            } else {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+}
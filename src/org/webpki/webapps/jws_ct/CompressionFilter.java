@@ -0,0 +1,474 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.logging.Logger;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Transparent gzip compression of responses and decompression of requests.
+ *
+ * Responses are buffered until MIN_COMPRESS_SIZE bytes have been written.
+ * Smaller responses are sent as is, while larger text/JSON responses are
+ * gzip-streamed if the client accepts it.  Responses that already carry a
+ * Content-Encoding (like CachedPage) are passed through untouched.
+ *
+ * Requests with "Content-Encoding: gzip" are inflated on the fly.  Since the
+ * container cannot parse a compressed form, form parameters are decoded here.
+ * The inflated size is limited like uncompressed bodies: in total for
+ * buffered bodies and per line for streamed batches.
+ */
+public class CompressionFilter implements Filter {
+
+    static Logger logger = Logger.getLogger(CompressionFilter.class.getName());
+
+    static final int MIN_COMPRESS_SIZE = 1024;
+
+    static final String[] COMPRESSIBLE_TYPES = {
+        "text/",
+        "application/json",
+        "application/x-ndjson",
+        "application/javascript",
+        "application/jose"
+    };
+
+    static boolean isCompressible(String contentType) {
+        if (contentType != null) {
+            for (String type : COMPRESSIBLE_TYPES) {
+                if (contentType.startsWith(type)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static class InflatingInputStream extends ServletInputStream {
+
+        InputStream in;
+        long total;
+        boolean finished;
+
+        InflatingInputStream(InputStream compressed) throws IOException {
+            in = new GZIPInputStream(compressed, 8192);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                finished = true;
+            } else if ((total += n) > JwsCtService.maxBodySize) {
+                // Zip bomb protection, same limit as for uncompressed bodies
+                // (restartCount() makes it per line for streamed batches)
+                throw RequestBody.tooLarge();
+            }
+            return n;
+        }
+
+        // Streamed bodies (see RequestBody.readLine()) are limited per line
+        // rather than in total.  Counting starts over for every line, with
+        // what has been read ahead already counted and one buffer's worth of
+        // read-ahead allowed for, so the line limit is always hit first.
+        void restartCount(int readAhead, int bufferSize) {
+            total = readAhead - bufferSize;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            // Inflating blocks on the compressed stream, to the listener
+            // all data is available right away
+            try {
+                readListener.onDataAvailable();
+                if (finished) {
+                    readListener.onAllDataRead();
+                }
+            } catch (IOException e) {
+                readListener.onError(e);
+            }
+        }
+    }
+
+    static class InflatingRequest extends HttpServletRequestWrapper {
+
+        InflatingInputStream in;
+        Map<String, String[]> parameters;
+
+        InflatingRequest(HttpServletRequest request) throws IOException {
+            super(request);
+            in = new InflatingInputStream(request.getInputStream());
+        }
+
+        static void addParameters(LinkedHashMap<String, ArrayList<String>> collector,
+                                  String encoded,
+                                  String charset) throws IOException {
+            if (encoded == null) {
+                return;
+            }
+            for (String pair : encoded.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int i = pair.indexOf('=');
+                String name = URLDecoder.decode(i < 0 ? pair : pair.substring(0, i), charset);
+                String value = i < 0 ? "" : URLDecoder.decode(pair.substring(i + 1), charset);
+                ArrayList<String> values = collector.get(name);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    collector.put(name, values);
+                }
+                values.add(value);
+            }
+        }
+
+        Map<String, String[]> getParameters() {
+            if (parameters == null) {
+                try {
+                    String charset = getCharacterEncoding() == null ?
+                                                "utf-8" : getCharacterEncoding();
+                    LinkedHashMap<String, ArrayList<String>> collector = new LinkedHashMap<>();
+                    addParameters(collector, getQueryString(), charset);
+                    String contentType = getContentType();
+                    if (contentType != null &&
+                        contentType.startsWith("application/x-www-form-urlencoded")) {
+                        ByteArrayOutputStream body = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+                            body.write(buffer, 0, n);
+                        }
+                        // Form data is US-ASCII by definition
+                        addParameters(collector, body.toString("us-ascii"), charset);
+                    }
+                    parameters = new LinkedHashMap<>();
+                    for (Map.Entry<String, ArrayList<String>> entry : collector.entrySet()) {
+                        parameters.put(entry.getKey(),
+                                       entry.getValue().toArray(new String[0]));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return parameters;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (name.equalsIgnoreCase("Content-Encoding") ||
+                name.equalsIgnoreCase("Content-Length")) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(in,
+                    getCharacterEncoding() == null ? "utf-8" : getCharacterEncoding()));
+        }
+
+        @Override
+        public String getParameter(String name) {
+            String[] values = getParameters().get(name);
+            return values == null ? null : values[0];
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.unmodifiableMap(getParameters());
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(getParameters().keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return getParameters().get(name);
+        }
+    }
+
+    static class CompressingResponse extends HttpServletResponseWrapper {
+
+        boolean acceptsGzip;
+        boolean passThrough;        // Somebody else handles the encoding
+        boolean decided;
+        boolean compressing;
+        long contentLength = -1;
+
+        ByteArrayOutputStream pending = new ByteArrayOutputStream(MIN_COMPRESS_SIZE);
+        OutputStream target;
+        ServletOutputStream bodyStream;
+        PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, boolean acceptsGzip) {
+            super(response);
+            this.acceptsGzip = acceptsGzip;
+        }
+
+        void decide(boolean large) throws IOException {
+            decided = true;
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            if (large && acceptsGzip && !passThrough && isCompressible(getContentType())) {
+                compressing = true;
+                response.setHeader("Content-Encoding", "gzip");
+                response.addHeader("Vary", "Accept-Encoding");
+                target = new GZIPOutputStream(response.getOutputStream(), 8192, true);
+            } else {
+                if (contentLength >= 0) {
+                    response.setContentLengthLong(contentLength);
+                } else if (!large) {
+                    response.setContentLength(pending.size());
+                }
+                target = response.getOutputStream();
+            }
+            pending.writeTo(target);
+            pending = null;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            if (!decided) {
+                if (passThrough) {
+                    decide(false);
+                } else if (pending.size() + len <= MIN_COMPRESS_SIZE) {
+                    pending.write(b, off, len);
+                    return;
+                } else {
+                    decide(true);
+                }
+            }
+            target.write(b, off, len);
+        }
+
+        void flush() throws IOException {
+            if (!decided) {
+                decide(true);
+            }
+            target.flush();
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (!decided) {
+                if (bodyStream == null) {
+                    return;             // No body at all (304 etc.)
+                }
+                decide(false);
+            }
+            if (compressing) {
+                ((GZIPOutputStream) target).finish();
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Encoding")) {
+                passThrough = true;
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                setContentLengthLong(Long.parseLong(value));
+                return;
+            }
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Encoding")) {
+                passThrough = true;
+            }
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            setContentLengthLong(length);
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            if (decided && !compressing) {
+                super.setContentLengthLong(length);
+            } else {
+                contentLength = length;
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            flush();
+            super.flushBuffer();
+        }
+
+        ServletOutputStream getBodyStream() throws IOException {
+            if (bodyStream == null) {
+                final ServletOutputStream original = super.getOutputStream();
+                bodyStream = new ServletOutputStream() {
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        CompressingResponse.this.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        CompressingResponse.this.flush();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return original.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        original.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return bodyStream;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() already called");
+            }
+            return getBodyStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (bodyStream != null) {
+                    throw new IllegalStateException("getOutputStream() already called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(getBodyStream(),
+                                                                getCharacterEncoding()));
+            }
+            return writer;
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String contentEncoding = httpRequest.getHeader("Content-Encoding");
+        if (contentEncoding != null) {
+            if (!contentEncoding.equalsIgnoreCase("gzip")) {
+                ((HttpServletResponse) response).sendError(
+                        HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                        "Unsupported Content-Encoding: " + contentEncoding);
+                return;
+            }
+            httpRequest = new InflatingRequest(httpRequest);
+        }
+        CompressingResponse compressingResponse =
+                new CompressingResponse((HttpServletResponse) response,
+                                        CachedPage.acceptsGzip(httpRequest));
+        chain.doFilter(httpRequest, compressingResponse);
+        // Asynchronous requests finish the response themselves, see AsyncServlet
+        if (!httpRequest.isAsyncStarted()) {
+            compressingResponse.finish();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
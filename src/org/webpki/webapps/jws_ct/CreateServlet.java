@@ -18,15 +18,13 @@ package org.webpki.webapps.jws_ct;
 
 import java.io.IOException;
 
-import java.net.URLEncoder;
-
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -49,10 +47,12 @@ import org.webpki.util.Base64URL;
 import org.webpki.util.HexaDecimal;
 import org.webpki.util.PEMDecoder;
 
-public class CreateServlet extends HttpServlet {
+public class CreateServlet extends AsyncServlet {
     
     static Logger logger = Logger.getLogger(CreateServlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("create");
+
     private static final long serialVersionUID = 1L;
 
     // HTML form arguments
@@ -125,11 +125,9 @@ public class CreateServlet extends HttpServlet {
         return html;
     }
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
+    @Override
+    CachedPage renderPage() throws IOException {
         String selected = "ES256";
-        StringBuilder js = new StringBuilder("'use strict';\n")
-            .append(JwsCtService.keyDeclarations);
         StringBuilder html = new StringBuilder(
                 "<form name='shoot' method='POST' action='create'>" +
                 "<div class='header'>JSON Signature Creation</div>" +
@@ -209,7 +207,14 @@ public class CreateServlet extends HttpServlet {
             .append(
                 "</form>" +
                 "<div>&nbsp;</div>");
-        js.append(
+        return HTML.scriptedPage(ScriptServlet.CREATE_SCRIPT, html);
+    }
+
+    // The demo keys are included so this is large, see ScriptServlet
+    static String javaScript() throws IOException {
+        return new StringBuilder("'use strict';\n")
+            .append(JwsCtService.keyDeclarations.getValue())
+            .append(
             "function fill(id, alg, keyHolder, unconditionally) {\n" +
             "  let element = document.getElementById(id).children[1];\n" +
             "  if (unconditionally || element.value == '') element.value = keyHolder[alg];\n" +
@@ -294,11 +299,9 @@ public class CreateServlet extends HttpServlet {
             "window.addEventListener('load', function(event) {\n" +
             "  setParameters(document.getElementById('" + PRM_ALGORITHM + "').value, false);\n" +
             "  setUserData(false);\n" +
-            "});\n");
-        HTML.standardPage(response, 
-                         js.toString(),
-                         html);
+            "});\n").toString();
     }
+
     
     static String getParameter(HttpServletRequest request, String parameter) throws IOException {
         String string = request.getParameter(parameter);
@@ -312,16 +315,17 @@ public class CreateServlet extends HttpServlet {
         return getParameter(request, parameter).getBytes("utf-8");
     }
 
+    // Raw JSON requests carry the options in the query string so they may be left out
+    static String getParameter(HttpServletRequest request, String parameter, String defaultValue) {
+        String string = request.getParameter(parameter);
+        return string == null ? defaultValue : string.trim();
+    }
+
     static String getTextArea(HttpServletRequest request, String name)
             throws IOException {
         String string = getParameter(request, name);
-        StringBuilder s = new StringBuilder();
-        for (char c : string.toCharArray()) {
-            if (c != '\r') {
-                s.append(c);
-            }
-        }
-        return s.toString();
+        // Browsers always send CRLF but the data is usually a single line
+        return string.indexOf('\r') < 0 ? string : string.replace("\r", "");
     }
 
     static byte[] decodeSymmetricKey(String keyString) throws IOException {
@@ -331,87 +335,146 @@ public class CreateServlet extends HttpServlet {
                   HexaDecimal.decode(keyString);
     }
 
-    public void doPost(HttpServletRequest request, HttpServletResponse response)
+    static SignatureAlgorithms getSignatureAlgorithm(String algorithmId) throws IOException {
+        return algorithmId.startsWith("HS") ?
+                HmacAlgorithms.getAlgorithmFromId(algorithmId, 
+                                                  AlgorithmPreferences.JOSE)
+                                            :
+                AsymSignatureAlgorithms.getAlgorithmFromId(algorithmId, 
+                                                           AlgorithmPreferences.JOSE);
+    }
+
+    static KeyPair decodePrivateKey(byte[] privateKeyBlob) 
+            throws IOException, GeneralSecurityException {
+        return privateKeyBlob[0] == '{' ?
+                JSONParser.parse(privateKeyBlob).getKeyPair() 
+                                        :
+                PEMDecoder.getKeyPair(privateKeyBlob);
+    }
+
+    static String getValidationKey(KeyPair keyPair, boolean jwkFormat) throws IOException {
+        return jwkFormat ?
+                JSONObjectWriter.createCorePublicKey(
+                        keyPair.getPublic(),
+                        AlgorithmPreferences.JOSE).toString()
+                         :
+                "-----BEGIN PUBLIC KEY-----\n" +
+                        Base64.mimeEncode(keyPair.getPublic().getEncoded()) +
+                        "\n-----END PUBLIC KEY-----";
+    }
+
+    // RFC 8785 payload, recorded in the flight recorder
+    static byte[] canonicalize(JSONObjectReader reader) throws IOException {
+        FlightEvents.Canonicalize event = new FlightEvents.Canonicalize();
+        event.begin();
+        byte[] canonicalized = reader.serializeToBytes(JSONOutputFormats.CANONICALIZED);
+        event.done(null, canonicalized.length, null);
+        return canonicalized;
+    }
+
+    // Sign and record the operation in the metrics and the flight recorder
+    static String sign(JWSSigner signer, SignatureAlgorithms signatureAlgorithm, byte[] payload)
+            throws IOException, GeneralSecurityException {
+        FlightEvents.Sign event = new FlightEvents.Sign();
+        event.begin();
+        long startTime = System.nanoTime();
+        Exception error = null;
+        try {
+            return signer.sign(payload, true);
+        } catch (IOException | GeneralSecurityException e) {
+            error = e;
+            throw e;
+        } finally {
+            event.done(signatureAlgorithm, payload.length, error);
+            Metrics.signed(signatureAlgorithm, startTime);
+            Metrics.payload("sign", payload.length);
+        }
+    }
+
+    public CreateServlet() {
+        super(metrics);
+    }
+
+    void process(HttpServletRequest request, HttpServletResponse response, long startTime)
             throws IOException, ServletException {
          try {
             request.setCharacterEncoding("utf-8");
-            String jsonData = getTextArea(request, PRM_JSON_DATA);
-            String signatureLabel = getParameter(request, PRM_SIG_LABEL);
+            PhaseTimer timer = new PhaseTimer("create");
+            byte[] jsonData;
+            String signatureLabel;
+            String additionalHeaderJson;
+            if (RequestBody.isJson(request)) {
+                // The document as is, the rest is in the query string
+                jsonData = RequestBody.read(request);
+                signatureLabel = getParameter(request, PRM_SIG_LABEL, DEFAULT_SIG_LBL);
+                additionalHeaderJson = getParameter(request, PRM_JWS_EXTRA, "{}");
+            } else {
+                jsonData = getTextArea(request, PRM_JSON_DATA).getBytes("utf-8");
+                signatureLabel = getParameter(request, PRM_SIG_LABEL);
+                additionalHeaderJson = getParameter(request, PRM_JWS_EXTRA);
+            }
             JSONObjectReader reader = JSONParser.parse(jsonData);
             if (reader.getJSONArrayReader() != null) {
                 throw new IOException("The demo does not support signed arrays");
             }
-            JSONObjectReader additionalHeaderData = 
-                    JSONParser.parse(getParameter(request, PRM_JWS_EXTRA));
+            JSONObjectReader additionalHeaderData = JSONParser.parse(additionalHeaderJson);
             boolean jsFlag = request.getParameter(FLG_JAVASCRIPT) != null;
             boolean keyInlining = request.getParameter(FLG_JWK_INLINE) != null;
             boolean certOption = request.getParameter(FLG_CERT_PATH) != null;
+            timer.phase("parse");
 
             // Get wanted signature algorithm
-            String algorithmParam = getParameter(request, PRM_ALGORITHM);
-            SignatureAlgorithms signatureAlgorithm = algorithmParam.startsWith("HS") ?
-                    HmacAlgorithms.getAlgorithmFromId(algorithmParam, 
-                                                     AlgorithmPreferences.JOSE)
-                                                                            :
-                    AsymSignatureAlgorithms.getAlgorithmFromId(algorithmParam, 
-                                                               AlgorithmPreferences.JOSE);
+            SignatureAlgorithms signatureAlgorithm = 
+                    getSignatureAlgorithm(getParameter(request, PRM_ALGORITHM));
 
             // Get the signature key
             JWSSigner JWSSigner;
-            String validationKey;
+            ValidationKey validationKey;
             
             // Symmetric or asymmetric?
             if (signatureAlgorithm.isSymmetric()) {
-                validationKey = getParameter(request, PRM_SECRET_KEY);
-                JWSSigner = new JWSHmacSigner(decodeSymmetricKey(validationKey),
+                validationKey = ValidationKey.getValidationKey(
+                        getParameter(request, PRM_SECRET_KEY), true);
+                JWSSigner = new JWSHmacSigner(validationKey.secretKey,
                                              (HmacAlgorithms)signatureAlgorithm);
             } else {
                 // To simplify UI we require PKCS #8 with the public key embedded
                 // but we also support JWK which also has the public key
                 byte[] privateKeyBlob = getBinaryParameter(request, PRM_PRIVATE_KEY);
-                KeyPair keyPair;
-                if (privateKeyBlob[0] == '{') {
-                    keyPair = JSONParser.parse(privateKeyBlob).getKeyPair();
-                    validationKey = 
-                            JSONObjectWriter.createCorePublicKey(
-                                    keyPair.getPublic(),
-                                    AlgorithmPreferences.JOSE).toString();
-                 } else {
-                    keyPair = PEMDecoder.getKeyPair(privateKeyBlob);
-                    validationKey = "-----BEGIN PUBLIC KEY-----\n" +
-                            Base64.mimeEncode(keyPair.getPublic().getEncoded()) +
-                            "\n-----END PUBLIC KEY-----";
-                }
+                SigningKey signingKey = SigningKey.getSigningKey(privateKeyBlob,
+                        certOption ? getBinaryParameter(request, PRM_CERT_PATH) : null);
+                validationKey = signingKey.validationKey;
                 privateKeyBlob = null;  // Nullify it after use
-                JWSSigner = new JWSAsymKeySigner(keyPair.getPrivate(),
+                JWSSigner = new JWSAsymKeySigner(signingKey.keyPair.getPrivate(),
                                                  (AsymSignatureAlgorithms)signatureAlgorithm);
 
                 // Add other JWS header data that the demo program fixes 
                 if (certOption) {
-                    ((JWSAsymKeySigner)JWSSigner).setCertificatePath(
-                            PEMDecoder.getCertificatePath(getBinaryParameter(request,
-                                                                             PRM_CERT_PATH)));
+                    ((JWSAsymKeySigner)JWSSigner).setCertificatePath(signingKey.certificatePath);
                 } else if (keyInlining) {
-                    ((JWSAsymKeySigner)JWSSigner).setPublicKey(keyPair.getPublic());
+                    ((JWSAsymKeySigner)JWSSigner).setPublicKey(signingKey.keyPair.getPublic());
                 }
             }
             
             // Add any optional (by the user specified) arguments
             JWSSigner.addHeaderItems(additionalHeaderData);
+            timer.phase("key");
 
             // Create the detached JWS data to be signed. Of course using RFC 8785 :)
-            byte[] jwsPayload = reader.serializeToBytes(JSONOutputFormats.CANONICALIZED);
+            // Note: must be done before the signature is added to the parsed object
+            byte[] jwsPayload = CanonicalCache.getCanonical(jsonData, reader);
+            timer.phase("canonicalize");
 
             // Sign it using the provided algorithm and key
 
             // Note: we didn't use the JWS/CT API method because it hides
             // the data needed for illustrating the function.
-            String jwsString = JWSSigner.sign(jwsPayload, true);
+            String jwsString = sign(JWSSigner, signatureAlgorithm, jwsPayload);
+            timer.phase("sign");
 
-            // Create the completed object
-            String signedJsonObject = new JSONObjectWriter(reader)
-                .setString(signatureLabel, jwsString)
-                .serializeToString(JSONOutputFormats.NORMALIZED);
+            // Create the completed object.  Note that the writer updates
+            // the parsed object in place
+            new JSONObjectWriter(reader).setString(signatureLabel, jwsString);
             
             // How things should appear in a "regular" JWS
             if (JwsCtService.logging) {
@@ -420,22 +483,27 @@ public class CreateServlet extends HttpServlet {
                             jwsString.substring(jwsString.lastIndexOf('.')));
             }
 
-            // We terminate by validating the signature as well
-            request.getRequestDispatcher((jsFlag ? "jssignature?" : "validate?") +
-                ValidateServlet.JWS_OBJECT + 
-                "=" +
-                URLEncoder.encode(signedJsonObject, "utf-8") +
-                "&" +
-                ValidateServlet.JWS_VALIDATION_KEY + 
-                "=" +
-                URLEncoder.encode(validationKey, "utf-8") +
-                "&" +
-                ValidateServlet.JWS_SIGN_LABL + 
-                "=" +
-                URLEncoder.encode(signatureLabel, "utf-8"))
-                    .forward(request, response);
+            // We terminate by validating the signature as well.  The signed object
+            // and the keys are handed over as is; there is no need to serialize,
+            // URL-encode, forward and parse them all over again
+            if (jsFlag) {
+                timer.setHeader(response);
+                JavaScriptSignatureServlet.showSignature(response, reader);
+                timer.phase("render");
+            } else {
+                ValidateServlet.validateAndShow(response, 
+                                                reader,
+                                                signatureLabel,
+                                                validationKey.text,
+                                                validationKey,
+                                                timer);
+            }
+            timer.log(logger);
         } catch (Exception e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
 }
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the CPU bound part of requests (canonicalization, signing, validation
+ * and page rendering) with one thread per core.
+ *
+ * More threads would only add context switches to work that never blocks.
+ * The queue is bounded so overload turns into quick 503 responses rather
+ * than a backlog that nobody is waiting for anymore.
+ */
+class CryptoExecutor {
+
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    static final int QUEUE_SIZE = THREADS * 32;
+
+    static LongAdder rejected = new LongAdder();
+
+    static ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            THREADS, THREADS, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadFactory() {
+
+        AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jws-ct-crypto-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    });
+
+    // Helpers only pay off when a thread is about to be free, and they must
+    // not take the queue slots used for admitting requests
+    static final int HELPER_QUEUE_LIMIT = THREADS;
+
+    // For optional helpers, false means that the caller does the work itself
+    static boolean tryExecuteHelper(Runnable task) {
+        if (executor.getQueue().size() >= HELPER_QUEUE_LIMIT) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    static void execute(Runnable task) throws RequestBody.LimitException {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new RequestBody.LimitException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                                 "Server busy, please try again later");
+        }
+    }
+}
@@ -22,7 +22,6 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -30,17 +29,20 @@ import org.webpki.asn1.DerDecoder;
 
 import org.webpki.util.Base64;
 
-public class DumpASN1Servlet extends HttpServlet {
+public class DumpASN1Servlet extends CachedPageServlet {
 
     private static final long serialVersionUID = 1L;
 
     static Logger logger = Logger.getLogger(DumpASN1Servlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("dumpasn1");
+
     // HTML form arguments
     static final String PEM_OBJECT        = "pem";
 
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
+        long startTime = System.nanoTime();
         try {
             request.setCharacterEncoding("utf-8");
             if (!request.getContentType().startsWith("application/x-www-form-urlencoded")) {
@@ -84,7 +86,10 @@ public class DumpASN1Servlet extends HttpServlet {
             // Finally, print it out
             HTML.standardPage(response, null, html.append("<div style='padding:10pt'></div>"));
         } catch (Exception e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
     
@@ -92,16 +97,15 @@ public class DumpASN1Servlet extends HttpServlet {
         throw new IOException("Unrecognized PEM");
     }
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
-
-        HTML.standardPage(response, null, new StringBuilder(
+    @Override
+    CachedPage renderPage() throws IOException {
+        return HTML.cachedPage(null, new StringBuilder(
                 "<form name='shoot' method='POST' action='dumpasn1'>" +
                 "<div class='header'>Dump PEM as ASN.1</div>")
             .append(HTML.fancyText(true,
                                    PEM_OBJECT,
                                    10, 
-                                   JwsCtService.sampleKeyConversionKey,
+                                   JwsCtService.sampleKeyConversionKey.getValue(),
                      "Paste a <i>single</i> PEM object or try with the default"))
             .append(
                 "<div style='display:flex;justify-content:center'>" +
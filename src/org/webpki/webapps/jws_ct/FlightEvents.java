@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.webpki.crypto.AlgorithmPreferences;
+import org.webpki.crypto.SignatureAlgorithms;
+
+/**
+ * Java Flight Recorder events for the cryptographic operations.
+ *
+ * Events are only committed while a recording that enables them is
+ * running; otherwise begin()/end() are practically free.  Stack traces
+ * are disabled since the call sites are few and well known.
+ */
+class FlightEvents {
+
+    static final String CATEGORY = "JWS/CT";
+
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static abstract class CryptoEvent extends Event {
+
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+
+        @Label("Key Type")
+        @Description("JWK \"kty\" of the key")
+        String keyType;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Error")
+        String error;
+
+        void done(SignatureAlgorithms signatureAlgorithm, long payloadSize, Exception error) {
+            end();
+            if (shouldCommit()) {
+                if (signatureAlgorithm != null) {
+                    try {
+                        algorithm = signatureAlgorithm.getAlgorithmId(AlgorithmPreferences.JOSE);
+                        keyType = keyType(algorithm);
+                    } catch (Exception e) {
+                        algorithm = signatureAlgorithm.toString();
+                    }
+                }
+                this.payloadSize = payloadSize;
+                success = error == null;
+                if (error != null) {
+                    this.error = error.getMessage() == null ?
+                            error.getClass().getName() : error.getMessage();
+                }
+                commit();
+            }
+        }
+    }
+
+    @Name("org.webpki.jws_ct.Sign")
+    @Label("JWS Sign")
+    static class Sign extends CryptoEvent {
+    }
+
+    @Name("org.webpki.jws_ct.Validate")
+    @Label("JWS Validate")
+    static class Validate extends CryptoEvent {
+    }
+
+    @Name("org.webpki.jws_ct.Canonicalize")
+    @Label("RFC 8785 Canonicalize")
+    static class Canonicalize extends CryptoEvent {
+    }
+
+    @Name("org.webpki.jws_ct.KeyDecode")
+    @Label("Key Decode")
+    static class KeyDecode extends CryptoEvent {
+
+        @Label("Key Format")
+        String keyFormat;
+    }
+
+    // JOSE algorithm identifiers to JWK "kty"
+    static String keyType(String algorithm) {
+        if (algorithm.startsWith("HS")) {
+            return "oct";
+        }
+        if (algorithm.startsWith("ES")) {
+            return "EC";
+        }
+        return algorithm.startsWith("Ed") ? "OKP" : "RSA";
+    }
+
+    // Java key algorithm names to JWK "kty"
+    static String keyTypeOf(String keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case "EC":
+            case "RSA":
+                return keyAlgorithm;
+            case "RSASSA-PSS":
+                return "RSA";
+            default:
+                return "OKP";    // EdDSA, Ed25519, Ed448, XDH...
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Admin endpoint for on-demand flight recordings.
+ *
+ * POST action=start|stop|dump with the token from the "admin_token"
+ * context parameter in an X-Admin-Token header.  GET returns the status.
+ * Recordings are dumped to the "jfr_directory" context parameter (default
+ * java.io.tmpdir); file names cannot be chosen by the client.  An empty
+ * token disables the servlet.
+ */
+public class FlightRecorderServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static Logger logger = Logger.getLogger(FlightRecorderServlet.class.getName());
+
+    static final String TOKEN_HEADER     = "X-Admin-Token";
+
+    static final String PRM_ACTION       = "action";
+
+    static final String ACTION_START     = "start";
+    static final String ACTION_STOP      = "stop";
+    static final String ACTION_DUMP      = "dump";
+
+    // JDK settings template; our own events are enabled on top of it
+    static final String JFR_SETTINGS     = "profile";
+
+    static final long MAX_RECORDING_SIZE = 256 * 1024 * 1024;
+
+    static Recording recording;  // Guarded by the class lock
+
+    static boolean authorized(HttpServletRequest request) throws IOException {
+        String token = request.getHeader(TOKEN_HEADER);
+        return JwsCtService.adminToken != null && !JwsCtService.adminToken.isEmpty() &&
+               token != null && MessageDigest.isEqual(token.getBytes("utf-8"),
+                                                      JwsCtService.adminToken.getBytes("utf-8"));
+    }
+
+    static void respond(HttpServletResponse response, int status, String message)
+            throws IOException {
+        byte[] text = (message + "\n").getBytes("utf-8");
+        response.setStatus(status);
+        response.setContentType("text/plain; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentLength(text.length);
+        response.getOutputStream().write(text);
+    }
+
+    static Path dump() throws IOException {
+        String directory = JwsCtService.jfrDirectory == null || JwsCtService.jfrDirectory.isEmpty() ?
+                System.getProperty("java.io.tmpdir") : JwsCtService.jfrDirectory;
+        Path file = Paths.get(directory, "jws-ct-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+        recording.dump(file);
+        logger.info("Flight recording dumped to: " + file);
+        return file;
+    }
+
+    static void start() throws IOException, ParseException {
+        recording = new Recording(Configuration.getConfiguration(JFR_SETTINGS));
+        recording.setName("jws-ct");
+        recording.setToDisk(true);
+        recording.setMaxSize(MAX_RECORDING_SIZE);
+        for (Class<?> event : new Class<?>[] {FlightEvents.Sign.class,
+                                             FlightEvents.Validate.class,
+                                             FlightEvents.Canonicalize.class,
+                                             FlightEvents.KeyDecode.class}) {
+            recording.enable(event.getName()).withoutThreshold();
+        }
+        recording.start();
+        logger.info("Flight recording started");
+    }
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (!authorized(request)) {
+            respond(response, HttpServletResponse.SC_FORBIDDEN, "Forbidden");
+            return;
+        }
+        synchronized (FlightRecorderServlet.class) {
+            respond(response, HttpServletResponse.SC_OK, recording == null ?
+                    "No recording" : "Recording: " + recording.getState() +
+                                     " size=" + recording.getSize());
+        }
+    }
+
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (!authorized(request)) {
+            respond(response, HttpServletResponse.SC_FORBIDDEN, "Forbidden");
+            return;
+        }
+        String action = request.getParameter(PRM_ACTION);
+        try {
+            synchronized (FlightRecorderServlet.class) {
+                if (ACTION_START.equals(action)) {
+                    if (recording != null) {
+                        respond(response, HttpServletResponse.SC_CONFLICT, "Already recording");
+                        return;
+                    }
+                    start();
+                    respond(response, HttpServletResponse.SC_OK, "Started");
+                    return;
+                }
+                if (recording == null) {
+                    respond(response, HttpServletResponse.SC_CONFLICT, "Not recording");
+                    return;
+                }
+                if (ACTION_DUMP.equals(action)) {
+                    respond(response, HttpServletResponse.SC_OK, "Dumped: " + dump());
+                    return;
+                }
+                if (ACTION_STOP.equals(action)) {
+                    // Stopping without saving would just throw the data away
+                    recording.stop();
+                    Path file = dump();
+                    recording.close();
+                    recording = null;
+                    respond(response, HttpServletResponse.SC_OK, "Stopped, dumped: " + file);
+                    return;
+                }
+            }
+            respond(response, HttpServletResponse.SC_BAD_REQUEST, "Unknown action: " + action);
+        } catch (IOException | ParseException | RuntimeException e) {
+            respond(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package org.webpki.webapps.jws_ct;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import java.util.logging.Logger;
 
@@ -35,6 +37,26 @@ public class HTML {
         "<title>JWS/CT Signature Lab</title>" + 
         "<link rel='stylesheet' type='text/css' href='style.css'>";
 
+    // Returns null for characters that do not need escaping
+    static String escape(char c, boolean newLineExpansion) {
+        switch (c) {
+        case '\n':
+            return newLineExpansion ? "<br>" : null;
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '&':
+            return "&amp;";
+        case '\"':
+            return "&#034;";
+        case '\'':
+            return "&#039;";
+        default:
+            return null;
+        }
+    }
+
     static String encode(String val, boolean newLineExpansion) {
         if (val != null) {
             StringBuilder buf = new StringBuilder(val.length() + 8);
@@ -42,28 +64,11 @@ public class HTML {
 
             for (int i = 0; i < val.length(); i++) {
                 c = val.charAt(i);
-                switch (c) {
-                case '\n':
-                    buf.append(newLineExpansion ? "<br>" : "\n");
-                    break;
-                case '<':
-                    buf.append("&lt;");
-                    break;
-                case '>':
-                    buf.append("&gt;");
-                    break;
-                case '&':
-                    buf.append("&amp;");
-                    break;
-                case '\"':
-                    buf.append("&#034;");
-                    break;
-                case '\'':
-                    buf.append("&#039;");
-                    break;
-                default:
+                String escaped = escape(c, newLineExpansion);
+                if (escaped == null) {
                     buf.append(c);
-                    break;
+                } else {
+                    buf.append(escaped);
                 }
             }
             return buf.toString();
@@ -72,13 +77,7 @@ public class HTML {
         }
     }
     
-    static String getHTML(String javascript, String box) {
-        StringBuilder html = new StringBuilder(HTML_INIT);
-        if (javascript != null) {
-            html.append("<script>").append(javascript)
-                    .append("</script>");
-        }
-        html.append("</head><body>" +
+    static final String PAGE_TOP = "</head><body>" +
             "<div style='display:flex;flex-wrap:wrap-reverse;justify-content:space-between'>" +
             "<div><img src='thelab.svg' " +
             "style='cursor:pointer;height:25pt;padding-bottom:10pt;margin-right:30pt'" +
@@ -88,11 +87,149 @@ public class HTML {
             "style='height:20pt' " +
             "title='Specifications, source code, etc.'/></a>" +
             "</div>" +
-            "</div>")
-         .append(box).append("</body></html>");
+            "</div>";
+
+    static final String PAGE_END = "</body></html>";
+
+    static String getHTML(String javascript, String box) {
+        StringBuilder html = new StringBuilder(HTML_INIT);
+        if (javascript != null) {
+            html.append("<script>").append(javascript)
+                    .append("</script>");
+        }
+        html.append(PAGE_TOP)
+         .append(box).append(PAGE_END);
         return html.toString();
     }
 
+    /**
+     * Page that is encoded and written to the response while it is being built.
+     *
+     * Nothing is written before the constructor is called so all processing
+     * that may fail must be done before that.
+     */
+    static class Page {
+
+        static final int CHUNK_SIZE = 4096;
+
+        Writer out;
+        StringBuilder logCopy;      // Only when logging
+        char[] chunk;
+
+        Page(HttpServletResponse response, String javaScript) throws IOException {
+            response.setContentType("text/html; charset=utf-8");
+            response.setHeader("Pragma", "No-Cache");
+            response.setDateHeader("EXPIRES", 0);
+            out = new OutputStreamWriter(response.getOutputStream(), "utf-8");
+            if (JwsCtService.logging) {
+                logCopy = new StringBuilder();
+            }
+            append(HTML_INIT);
+            if (javaScript != null) {
+                append("<script>").append(javaScript).append("</script>");
+            }
+            append(PAGE_TOP);
+        }
+
+        Page append(String string) throws IOException {
+            out.write(string);
+            if (logCopy != null) {
+                logCopy.append(string);
+            }
+            return this;
+        }
+
+        Page append(char c) throws IOException {
+            out.write(c);
+            if (logCopy != null) {
+                logCopy.append(c);
+            }
+            return this;
+        }
+
+        // Copies in chunks to avoid toString() of large builders
+        Page append(StringBuilder html) throws IOException {
+            if (chunk == null) {
+                chunk = new char[CHUNK_SIZE];
+            }
+            int length = html.length();
+            for (int start = 0; start < length; start += CHUNK_SIZE) {
+                int end = Math.min(start + CHUNK_SIZE, length);
+                html.getChars(start, end, chunk, 0);
+                out.write(chunk, 0, end - start);
+            }
+            if (logCopy != null) {
+                logCopy.append(html);
+            }
+            return this;
+        }
+
+        Page encode(String val, boolean newLineExpansion) throws IOException {
+            if (val != null) {
+                int length = val.length();
+                int start = 0;
+                for (int i = 0; i < length; i++) {
+                    String escaped = escape(val.charAt(i), newLineExpansion);
+                    if (escaped != null) {
+                        if (i > start) {
+                            out.write(val, start, i - start);
+                            if (logCopy != null) {
+                                logCopy.append(val, start, i);
+                            }
+                        }
+                        append(escaped);
+                        start = i + 1;
+                    }
+                }
+                if (length > start) {
+                    out.write(val, start, length - start);
+                    if (logCopy != null) {
+                        logCopy.append(val, start, length);
+                    }
+                }
+            }
+            return this;
+        }
+
+        Page fancyBox(String id, String content, String header) throws IOException {
+            return append(boxHeader(id, header, true))
+                .append("<div class='staticbox'>")
+                .append(content)
+                .append("</div></div>");
+        }
+
+        Page fancyCode(String id, String content, String header) throws IOException {
+            return append(boxHeader(id, header, true))
+                .append("<div class='staticbox'>")
+                .encode(content, true)
+                .append("</div></div>");
+        }
+
+        void close() throws IOException {
+            append(PAGE_END);
+            out.flush();
+            if (logCopy != null) {
+                logger.info(logCopy.toString());
+            }
+        }
+    }
+
+    static CachedPage cachedPage(String javaScript, StringBuilder html) throws IOException {
+        return new CachedPage(getHTML(javaScript, html.toString()));
+    }
+
+    // The script is referenced rather than inlined
+    static CachedPage scriptedPage(ScriptServlet.Script script, StringBuilder html)
+            throws IOException {
+        return new CachedPage(new StringBuilder(HTML_INIT)
+            .append("<script src='")
+            .append(script.getUrl())
+            .append("'></script>")
+            .append(PAGE_TOP)
+            .append(html)
+            .append(PAGE_END).toString());
+    }
+
     static void output(HttpServletResponse response, String html)
             throws IOException, ServletException {
         if (JwsCtService.logging) {
@@ -148,7 +285,9 @@ public class HTML {
     static void standardPage(HttpServletResponse response, 
                             String javaScript,
                             StringBuilder html) throws IOException, ServletException {
-        HTML.output(response, HTML.getHTML(javaScript, html.toString()));
+        Page page = new Page(response, javaScript);
+        page.append(html);
+        page.close();
     }
 
     public static void noWebCryptoPage(HttpServletResponse response)
@@ -174,6 +313,9 @@ public class HTML {
 
     public static void errorPage(HttpServletResponse response, Exception e)
             throws IOException, ServletException {
+        if (e instanceof RequestBody.LimitException) {
+            response.setStatus(((RequestBody.LimitException) e).status);
+        }
         StringBuilder error = new StringBuilder("Stack trace:\n")
             .append(e.getClass().getName())
             .append(": ")
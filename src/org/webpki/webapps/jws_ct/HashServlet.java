@@ -18,85 +18,193 @@ package org.webpki.webapps.jws_ct;
 
 import java.io.IOException;
 
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 
 import org.webpki.crypto.AlgorithmPreferences;
 import org.webpki.crypto.HashAlgorithms;
 
 import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
 import org.webpki.json.JSONParser;
 
 import org.webpki.util.ArrayUtil;
 import org.webpki.util.Base64URL;
 
-public class HashServlet extends HttpServlet {
+public class HashServlet extends CachedPageServlet {
 
     private static final long serialVersionUID = 1L;
 
     static Logger logger = Logger.getLogger(HashServlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("hash");
+
     // HTML form arguments
     static final String JSON_DATA        = "json";
 
     static final String HASH_ALGORITHM     = "alg";
+
+    // Upload mode: raw JSON or a multipart file, hashed with several algorithms
+    static final String UPLOAD_FILE        = "file";
+
+    static final String RSP_LENGTH         = "length";
+    static final String RSP_DIGESTS        = "digests";
+
+    static final String[] DEFAULT_UPLOAD_ALGORITHMS = {"S256", "S384", "S512"};
+
+    static HashAlgorithms[] getUploadAlgorithms(HttpServletRequest request)
+            throws IOException {
+        String[] values = request.getParameterValues(HASH_ALGORITHM);
+        ArrayList<HashAlgorithms> algorithms = new ArrayList<>();
+        for (String value : values == null ? DEFAULT_UPLOAD_ALGORITHMS : values) {
+            // Both alg=S256&alg=S512 and alg=S256,S512 are accepted
+            for (String algorithmId : value.split(",")) {
+                algorithmId = algorithmId.trim();
+                if (!algorithmId.isEmpty()) {
+                    HashAlgorithms algorithm =
+                            HashAlgorithms.getAlgorithmFromId(algorithmId,
+                                                              AlgorithmPreferences.JOSE);
+                    if (!algorithms.contains(algorithm)) {
+                        algorithms.add(algorithm);
+                    }
+                }
+            }
+        }
+        if (algorithms.isEmpty()) {
+            throw new IOException("No hash algorithm given");
+        }
+        return algorithms.toArray(new HashAlgorithms[0]);
+    }
+
+    void uploadHash(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        try {
+            HashAlgorithms[] algorithms = getUploadAlgorithms(request);
+            // The JSON parser needs the whole document, the canonical form is never stored
+            byte[] rawJson;
+            if (RequestBody.isJson(request)) {
+                rawJson = RequestBody.read(request);
+            } else {
+                Part part = request.getPart(UPLOAD_FILE);
+                if (part == null) {
+                    throw new IOException("Missing data for: " + UPLOAD_FILE);
+                }
+                rawJson = RequestBody.read(part.getInputStream(), part.getSize());
+            }
+
+            MessageDigest[] messageDigests = new MessageDigest[algorithms.length];
+            for (int i = 0; i < algorithms.length; i++) {
+                messageDigests[i] = MessageDigest.getInstance(algorithms[i].getJceName());
+            }
+            long length;
+            if (CanonicalCache.cacheable(rawJson)) {
+                // Resubmitted documents are neither parsed nor canonicalized again
+                byte[] canonicalJson = CanonicalCache.getCanonical(rawJson);
+                for (MessageDigest messageDigest : messageDigests) {
+                    messageDigest.update(canonicalJson);
+                }
+                length = canonicalJson.length;
+            } else {
+                // Canonicalize once, feeding all the digests from the same buffer
+                JSONObjectReader parsedJson = JSONParser.parse(rawJson);
+                FlightEvents.Canonicalize event = new FlightEvents.Canonicalize();
+                event.begin();
+                length = CanonicalWriter.canonicalize(parsedJson,
+                        CanonicalWriter.digestSink(messageDigests));
+                event.done(null, length, null);
+            }
+
+            JSONObjectWriter result = new JSONObjectWriter().setInt(RSP_LENGTH, (int) length);
+            JSONObjectWriter digests = result.setObject(RSP_DIGESTS);
+            for (int i = 0; i < algorithms.length; i++) {
+                digests.setString(algorithms[i].getAlgorithmId(AlgorithmPreferences.JOSE),
+                                  Base64URL.encode(messageDigests[i].digest()));
+            }
+            byte[] json = result.serializeToBytes(JSONOutputFormats.PRETTY_PRINT);
+            response.setContentType(JsonSignServlet.JSON_CONTENT_TYPE);
+            response.setContentLength(json.length);
+            response.getOutputStream().write(json);
+        } catch (Exception e) {
+            metrics.error();
+            JsonSignServlet.jsonError(response, RequestBody.status(e), e.getMessage());
+        }
+    }
     
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
+        long startTime = System.nanoTime();
         try {
             request.setCharacterEncoding("utf-8");
-            if (!request.getContentType().startsWith("application/x-www-form-urlencoded")) {
-                throw new IOException("Unexpected MIME type:" + request.getContentType());
+            String contentType = request.getContentType();
+            if (contentType.startsWith(JsonSignServlet.JSON_CONTENT_TYPE) ||
+                contentType.startsWith("multipart/form-data")) {
+                uploadHash(request, response);
+                return;
+            }
+            if (!contentType.startsWith("application/x-www-form-urlencoded")) {
+                throw new IOException("Unexpected MIME type:" + contentType);
             }
 
             // Get the input data items
-            JSONObjectReader parsedJson = JSONParser.parse(
-                    CreateServlet.getParameter(request, JSON_DATA));
+            PhaseTimer timer = new PhaseTimer("hash");
+            byte[] rawJson = CreateServlet.getBinaryParameter(request, JSON_DATA);
+            JSONObjectReader parsedJson = JSONParser.parse(rawJson);
             HashAlgorithms hashAlgorithm = HashAlgorithms.getAlgorithmFromId(
                     CreateServlet.getParameter(request, HASH_ALGORITHM), 
                     AlgorithmPreferences.JOSE);
+            timer.phase("parse");
 
             // Create a pretty-printed JSON object without canonicalization
             String prettyJson = parsedJson.serializeToString(JSONOutputFormats.PRETTY_HTML);
+            timer.phase("pretty");
             
-            // Create a canonicalized (RFC 8785) version of the JSON data
-            String canonicalJson = parsedJson.serializeToString(JSONOutputFormats.CANONICALIZED);
-            byte[] canonicalJsonBinary = canonicalJson.getBytes("utf-8");
-            
-            // Hash the UTF-8
+            // Get the canonicalized (RFC 8785) version of the JSON data (resubmitted
+            // data is usually cached) and hash it
+            byte[] canonicalJsonBinary = CanonicalCache.getCanonical(rawJson, parsedJson);
+            String canonicalJson = new String(canonicalJsonBinary, "utf-8");
             byte[] hashedJson = hashAlgorithm.digest(canonicalJsonBinary);
+            timer.phase("canonicalize");
+            timer.setHeader(response);
             
-            StringBuilder html = new StringBuilder(
-                    "<div class='header'>JSON Data Successfully Hashed</div>")
-                .append(HTML.fancyBox("pretty", 
-                                      prettyJson, 
-                                      "\"Pretty-printed\" JSON data"))           
-                .append(HTML.fancyCode("canonical", 
-                                       canonicalJson,
-                                       "Canonical (RFC 8785) version of the JSON data"))
-                .append(HTML.fancyBox("canonicalhex", 
-                                  ArrayUtil.toHexString(canonicalJsonBinary, 0, -1, false, ' '),
-                                      "Canonical data in hexadecimal"))
-                .append(HTML.fancyBox("algorithm", 
-                                       hashAlgorithm.getJoseAlgorithmId(),
-                                       "Hash algorithm in JOSE-like notation"))
-                 .append(HTML.fancyBox("hex",
-                                       ArrayUtil.toHexString(hashedJson, 0, -1, false, ' '),
-                                       "Hash in hexadecimal"))
-                 .append(HTML.fancyBox("b64u",
-                                       Base64URL.encode(hashedJson),
-                                       "Hash in Base64Url"));
-
-            // Finally, print it out
-            HTML.standardPage(response, null, html.append("<div style='padding:10pt'></div>"));
+            // Stream the result page
+            new HTML.Page(response, null)
+                .append("<div class='header'>JSON Data Successfully Hashed</div>")
+                .fancyBox("pretty", 
+                          prettyJson, 
+                          "\"Pretty-printed\" JSON data")
+                .fancyCode("canonical", 
+                           canonicalJson,
+                           "Canonical (RFC 8785) version of the JSON data")
+                .fancyBox("canonicalhex", 
+                          ArrayUtil.toHexString(canonicalJsonBinary, 0, -1, false, ' '),
+                          "Canonical data in hexadecimal")
+                .fancyBox("algorithm", 
+                          hashAlgorithm.getJoseAlgorithmId(),
+                          "Hash algorithm in JOSE-like notation")
+                .fancyBox("hex",
+                          ArrayUtil.toHexString(hashedJson, 0, -1, false, ' '),
+                          "Hash in hexadecimal")
+                .fancyBox("b64u",
+                          Base64URL.encode(hashedJson),
+                          "Hash in Base64Url")
+                .append("<div style='padding:10pt'></div>")
+                .close();
+            timer.phase("render");
+            timer.log(logger);
         } catch (Exception e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
     
@@ -123,16 +231,15 @@ public class HashServlet extends HttpServlet {
         return html.append("</select></td></tr></table></div>");
     }
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
-
-        HTML.standardPage(response, null, new StringBuilder(
+    @Override
+    CachedPage renderPage() throws IOException {
+        return HTML.cachedPage(null, new StringBuilder(
                 "<form name='shoot' method='POST' action='hash'>" +
                 "<div class='header'>Canonicalize and Hash JSON Data</div>")
             .append(HTML.fancyText(true,
                                    JSON_DATA,
                                    10, 
-                                   JwsCtService.sampleJsonForHashing,
+                                   JwsCtService.sampleJsonForHashing.getValue(),
                      "Paste JSON data in the text box or try with the default"))
             .append(algorithmSelector())
             .append(
@@ -142,6 +249,20 @@ public class HashServlet extends HttpServlet {
                 "</div>" +
                 "</div>" +
                 "</form>" +
+                "<form name='upload' method='POST' action='hash' " +
+                "enctype='multipart/form-data'>" +
+                "<div style='display:flex;justify-content:center;margin-top:1.5em'>" +
+                "<table><tr><td>Or upload a large JSON file (the result is returned as JSON):" +
+                "</td></tr><tr><td><input type='file' name='" + UPLOAD_FILE + "'>" +
+                "<input type='hidden' name='" + HASH_ALGORITHM + "' value='" +
+                String.join(",", DEFAULT_UPLOAD_ALGORITHMS) + "'>" +
+                "</td></tr></table></div>" +
+                "<div style='display:flex;justify-content:center'>" +
+                "<div class='stdbtn' onclick=\"document.forms.upload.submit()\">" +
+                "Upload and Hash" +
+                "</div>" +
+                "</div>" +
+                "</form>" +
                 "<div>&nbsp;</div>"));
     }
 }
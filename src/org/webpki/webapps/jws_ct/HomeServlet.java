@@ -18,20 +18,13 @@ package org.webpki.webapps.jws_ct;
 
 import java.io.IOException;
 
-import javax.servlet.ServletException;
-
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-public class HomeServlet extends HttpServlet {
+public class HomeServlet extends CachedPageServlet {
 
     private static final long serialVersionUID = 1L;
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
-
-        HTML.standardPage(response, null, new StringBuilder(
+    @Override
+    CachedPage renderPage() throws IOException {
+        return HTML.cachedPage(null, new StringBuilder(
             "<div class='header'>JSON Clear Text Signature</div>" +
             "<div style='padding-top:15pt'>This site permits testing and debugging " +
             "a scheme for \"Clear&nbsp;Text\" JSON signatures tentatively targeted for " +
@@ -26,6 +26,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.webpki.json.JSONObjectReader;
 import org.webpki.json.JSONOutputFormats;
 import org.webpki.json.JSONParser;
 
@@ -35,37 +36,48 @@ public class JavaScriptSignatureServlet extends HttpServlet {
 
     static Logger logger = Logger.getLogger(JavaScriptSignatureServlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("jssignature");
+
+    static void showSignature(HttpServletResponse response, JSONObjectReader signedObject)
+            throws IOException, ServletException {
+        String htmlSafe = HTML.encode(
+            signedObject.serializeToString(JSONOutputFormats.PRETTY_JS_NATIVE), true)
+                .replace("  ", "&nbsp;&nbsp;&nbsp;&nbsp;");
+        HTML.standardPage(response,
+                          null, 
+                          new StringBuilder(
+             "<div class=\"header\">Signatures in JavaScript Notation</div>")
+                              .append(HTML.fancyBox("verify",
+                                                    htmlSafe,
+  "JavaScript compatible object featuring an embedded JWS signature element"))
+                              .append(
+  "<div style=\"padding-top:20pt\">Note that the signature above is not verified. " +
+  "The only difference between " +
+  "the JavaScript notation and &quot;true&quot; JSON is the removal of the " +
+  "(usually redundant) quote characters " +
+  "around property names.  Names that interfere with JavaScript naming " +
+  "conventions for variables like '5' or 'my.prop' will though be quoted.</div>" +
+  "<div style=\"padding-top:5pt\">Since the JavaScript <code>JSON.stringify()</code> " +
+  "method restores the \"true\" JSON format, the two notations are fully " +
+  "interoperable.</div>"));
+    }
+
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
+        long startTime = System.nanoTime();
         try {
             request.setCharacterEncoding("utf-8");
             if (!request.getContentType().startsWith("application/x-www-form-urlencoded")) {
                 throw new IOException("Unexpected MIME type: " + request.getContentType());
             }
-            String htmlSafe = HTML.encode(
-                JSONParser.parse(CreateServlet.getParameter(request, 
-                                                            ValidateServlet.JWS_OBJECT))
-                    .serializeToString(JSONOutputFormats.PRETTY_JS_NATIVE), true)
-                        .replace("  ", "&nbsp;&nbsp;&nbsp;&nbsp;");
-            HTML.standardPage(response,
-                              null, 
-                              new StringBuilder(
-                 "<div class=\"header\">Signatures in JavaScript Notation</div>")
-                                  .append(HTML.fancyBox("verify",
-                                                        htmlSafe,
-      "JavaScript compatible object featuring an embedded JWS signature element"))
-                                  .append(
-      "<div style=\"padding-top:20pt\">Note that the signature above is not verified. " +
-      "The only difference between " +
-      "the JavaScript notation and &quot;true&quot; JSON is the removal of the " +
-      "(usually redundant) quote characters " +
-      "around property names.  Names that interfere with JavaScript naming " +
-      "conventions for variables like '5' or 'my.prop' will though be quoted.</div>" +
-      "<div style=\"padding-top:5pt\">Since the JavaScript <code>JSON.stringify()</code> " +
-      "method restores the \"true\" JSON format, the two notations are fully " +
-      "interoperable.</div>"));
+            showSignature(response,
+                          JSONParser.parse(CreateServlet.getParameter(request, 
+                                                                      ValidateServlet.JWS_OBJECT)));
         } catch (IOException e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
 }
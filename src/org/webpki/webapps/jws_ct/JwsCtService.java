@@ -19,8 +19,18 @@ package org.webpki.webapps.jws_ct;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.lang.management.ManagementFactory;
+
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,18 +58,63 @@ public class JwsCtService extends InitPropertyReader implements ServletContextLi
 
     static Logger logger = Logger.getLogger(JwsCtService.class.getName());
 
-    static String sampleSignature;
+    static DemoData sampleSignature;
     
-    static String sampleJsonForHashing;
+    static DemoData sampleJsonForHashing;
     
-    static String samplePublicKey;
+    static DemoData samplePublicKey;
     
-    static String sampleKeyConversionKey;
+    static DemoData sampleKeyConversionKey;
 
-    static String keyDeclarations;
+    static DemoData keyDeclarations;
     
     static boolean logging;
 
+    static String adminToken;
+    
+    static String jfrDirectory;
+
+    // Raw request bodies, see RequestBody.  The defaults apply outside of a container
+    static int maxBodySize = 64 * 1024 * 1024;
+
+    static int bodyTimeout = 30;
+
+    /**
+     * A demo data item which is created once, either in the background or by
+     * the first caller, whichever comes first.
+     */
+    static class DemoData extends FutureTask<String> {
+
+        String name;
+        long startTime = System.nanoTime();
+
+        DemoData(String name, Callable<String> creator) {
+            super(creator);
+            this.name = name;
+        }
+
+        @Override
+        protected void done() {
+            logger.fine("Demo data \"" + name + "\" ready after " +
+                        (System.nanoTime() - startTime) / 1000000 + " ms");
+        }
+
+        String getValue() throws IOException {
+            // Does nothing if the task already is running or done
+            run();
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
     class KeyDeclaration {
         
         static final String PRIVATE_KEYS = "privateKeys";
@@ -124,17 +179,35 @@ public class JwsCtService extends InitPropertyReader implements ServletContextLi
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
+        AsyncServlet.watchdog.shutdownNow();
+        CryptoExecutor.executor.shutdown();
+        logger.info(SigningKey.cache.toString());
+        logger.info(ValidationKey.cache.toString());
+        logger.info(CanonicalCache.cache.toString());
+        logger.info(VerificationCache.cache.toString());
+        synchronized (FlightRecorderServlet.class) {
+            if (FlightRecorderServlet.recording != null) {
+                FlightRecorderServlet.recording.close();
+                FlightRecorderServlet.recording = null;
+            }
+        }
     }
 
     @Override
     public void contextInitialized(ServletContextEvent event) {
+        long startTime = System.nanoTime();
         initProperties(event);
-        CustomCryptoProvider.forcedLoad(false);
         try {
             /////////////////////////////////////////////////////////////////////////////////////////////
-            // Keys
+            // Demo data, only needed by the GET pages.  Prepared in parallel while the
+            // rest of the application starts, a page that gets there first waits or
+            // does the work itself
             /////////////////////////////////////////////////////////////////////////////////////////////
-            keyDeclarations = 
+            keyDeclarations = new DemoData("key declarations", new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    return
                     new KeyDeclaration(KeyDeclaration.PRIVATE_KEYS, "privatekey.pem")
                           .addKey(AsymSignatureAlgorithms.ED25519,       "ed25519")
                           .addKey(AsymSignatureAlgorithms.ED448,         "ed448")
@@ -163,43 +236,108 @@ public class JwsCtService extends InitPropertyReader implements ServletContextLi
                           .addKey(HmacAlgorithms.HMAC_SHA256,            "a256")
                           .addKey(HmacAlgorithms.HMAC_SHA384,            "a384")
                           .addKey(HmacAlgorithms.HMAC_SHA512,            "a512").toString();
+                }
+
+            });
+
+            sampleJsonForHashing = new DemoData("hash sample", new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    return getEmbeddedResourceString("sample-data-to-hash.json");
+                }
+
+            });
+
+            sampleKeyConversionKey = new DemoData("key conversion sample", new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    return getEmbeddedResourceString("ed25519privatekey.pem");
+                }
+
+            });
+
+            sampleSignature = new DemoData("sample signature", new Callable<String>() {
+
+                @Override
+                public String call() throws IOException, GeneralSecurityException {
+                    String sampleDataToSign = getEmbeddedResourceString("sample-data-to-sign.json");
+                    PrivateKey samplePrivateKey = 
+                            PEMDecoder.getPrivateKey(getEmbeddedResource("p256privatekey.pem"));
+                    String jwsString = new JWSAsymKeySigner(samplePrivateKey,
+                                                            AsymSignatureAlgorithms.ECDSA_SHA256)
+                            .sign(JSONParser.parse(sampleDataToSign)
+                                    .serializeToBytes(JSONOutputFormats.CANONICALIZED),
+                                  true);
+                    String signature = 
+                            new JSONObjectWriter()
+                                .setString(CreateServlet.DEFAULT_SIG_LBL, 
+                                           jwsString)
+                                .serializeToString(JSONOutputFormats.PRETTY_PRINT);
+                    return sampleDataToSign.substring(0, sampleDataToSign.lastIndexOf('}')) +
+                           "," +
+                           signature.substring(signature.indexOf("\n "));
+                }
+
+            });
+
+            samplePublicKey = new DemoData("sample public key", new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    return getEmbeddedResourceString("p256publickey.pem");
+                }
+
+            });
 
             /////////////////////////////////////////////////////////////////////////////////////////////
-            // Sample data for hashing
+            // The crypto provider must be in place before we take any traffic
+            // and before the demo data (which signs with it) is created
             /////////////////////////////////////////////////////////////////////////////////////////////
-            sampleJsonForHashing = getEmbeddedResourceString("sample-data-to-hash.json");
+            CustomCryptoProvider.forcedLoad(false);
+
+            ExecutorService demoExecutor = Executors.newFixedThreadPool(
+                    Math.min(Runtime.getRuntime().availableProcessors(), 4),
+                    new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jws-ct-demo-data");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+            for (DemoData demoData : new DemoData[] {keyDeclarations,
+                                                     sampleSignature,
+                                                     sampleJsonForHashing,
+                                                     sampleKeyConversionKey,
+                                                     samplePublicKey}) {
+                demoExecutor.execute(demoData);
+            }
+            demoExecutor.shutdown();
 
             /////////////////////////////////////////////////////////////////////////////////////////////
-            // Sample key for converting
+            // Logging?
             /////////////////////////////////////////////////////////////////////////////////////////////
-            sampleKeyConversionKey = getEmbeddedResourceString("ed25519privatekey.pem");
+            logging = getPropertyBoolean("logging");
 
             /////////////////////////////////////////////////////////////////////////////////////////////
-            // Sample signature for verification
+            // Flight recorder admin servlet
             /////////////////////////////////////////////////////////////////////////////////////////////
-            String sampleDataToSign = getEmbeddedResourceString("sample-data-to-sign.json");
-            PrivateKey samplePrivateKey = 
-                    PEMDecoder.getPrivateKey(getEmbeddedResource("p256privatekey.pem"));
-            String jwsString = new JWSAsymKeySigner(samplePrivateKey,
-                                                    AsymSignatureAlgorithms.ECDSA_SHA256)
-                    .sign(JSONParser.parse(sampleDataToSign)
-                            .serializeToBytes(JSONOutputFormats.CANONICALIZED),
-                          true);
-            String signature = 
-                    new JSONObjectWriter()
-                        .setString(CreateServlet.DEFAULT_SIG_LBL, 
-                                   jwsString).serializeToString(JSONOutputFormats.PRETTY_PRINT);
-            sampleSignature = sampleDataToSign.substring(0, sampleDataToSign.lastIndexOf('}')) +
-                              "," +
-                              signature.substring(signature.indexOf("\n "));
-            samplePublicKey = getEmbeddedResourceString("p256publickey.pem");
+            adminToken = getPropertyString("admin_token");
+            jfrDirectory = getPropertyString("jfr_directory");
 
             /////////////////////////////////////////////////////////////////////////////////////////////
-            // Logging?
+            // Request body limits
             /////////////////////////////////////////////////////////////////////////////////////////////
-            logging = getPropertyBoolean("logging");
+            maxBodySize = getPropertyInt("max_body_size");
+            bodyTimeout = getPropertyInt("body_timeout");
 
-            logger.info("JWS/CT Demo Successfully Initiated");
+            logger.info("JWS/CT Demo Successfully Initiated in " +
+                        (System.nanoTime() - startTime) / 1000000 + " ms (JVM uptime " +
+                        ManagementFactory.getRuntimeMXBean().getUptime() + " ms)");
         } catch (Exception e) {
             logger.log(Level.SEVERE, "********\n" + e.getMessage() + "\n********", e);
         }
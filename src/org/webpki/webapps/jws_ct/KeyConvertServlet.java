@@ -25,7 +25,6 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -42,17 +41,20 @@ import org.webpki.tools.KeyStore2PEMConverter;
 
 import org.webpki.util.PEMDecoder;
 
-public class KeyConvertServlet extends HttpServlet {
+public class KeyConvertServlet extends CachedPageServlet {
 
     private static final long serialVersionUID = 1L;
 
     static Logger logger = Logger.getLogger(KeyConvertServlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("keyconv");
+
     // HTML form arguments
     static final String KEY_DATA        = "key";
 
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
+        long startTime = System.nanoTime();
         try {
             request.setCharacterEncoding("utf-8");
             if (!request.getContentType().startsWith("application/x-www-form-urlencoded")) {
@@ -116,20 +118,22 @@ public class KeyConvertServlet extends HttpServlet {
             // Finally, print it out
             HTML.standardPage(response, null, html.append("<div style='padding:10pt'></div>"));
         } catch (Exception e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
     
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
-
-        HTML.standardPage(response, null, new StringBuilder(
+    @Override
+    CachedPage renderPage() throws IOException {
+        return HTML.cachedPage(null, new StringBuilder(
                 "<form name='shoot' method='POST' action='keyconv'>" +
                 "<div class='header'>Convert JWK &lt;-&gt; PEM</div>")
             .append(HTML.fancyText(true,
                                    KEY_DATA,
                                    10, 
-                                   JwsCtService.sampleKeyConversionKey,
+                                   JwsCtService.sampleKeyConversionKey.getValue(),
                      "Paste public or private key in JWK or PEM format or try with the default"))
             .append(
                 "<div style='margin-top:1em'>Limitations:" +
@@ -0,0 +1,286 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.math.BigDecimal;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.webpki.crypto.AlgorithmPreferences;
+import org.webpki.crypto.SignatureAlgorithms;
+
+/**
+ * Application metrics in the Prometheus text exposition format.
+ *
+ * All counters are LongAdders (striped, no locks, no CAS loops under
+ * contention) and histograms have fixed buckets so recording never
+ * allocates.  Series are created on first use; after that finding
+ * one is a plain lock-free map lookup.
+ */
+class Metrics {
+
+    static final String PREFIX = "jwsct_";
+
+    // Seconds
+    static final double[] LATENCY_BUCKETS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+        0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    // Bytes
+    static final double[] SIZE_BUCKETS = {
+        64, 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216
+    };
+
+    static class Histogram {
+
+        double[] bounds;
+        String[] boundLabels;
+        LongAdder[] buckets;           // Not cumulative, the last one is +Inf
+        DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            boundLabels = new String[bounds.length];
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                boundLabels[i] = BigDecimal.valueOf(bounds[i]).stripTrailingZeros().toPlainString();
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        void observeNanos(long startTime) {
+            observe((System.nanoTime() - startTime) / 1e9);
+        }
+
+        void write(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name)
+                   .append("_bucket{")
+                   .append(labels)
+                   .append(separator)
+                   .append("le=\"")
+                   .append(i < bounds.length ? boundLabels[i] : "+Inf")
+                   .append("\"} ")
+                   .append(cumulative)
+                   .append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(braces).append(' ')
+               .append(sum.sum()).append('\n')
+               .append(name).append("_count").append(braces).append(' ')
+               .append(cumulative).append('\n');
+        }
+    }
+
+    static class Requests {
+
+        LongAdder requests = new LongAdder();
+        LongAdder errors = new LongAdder();
+        Histogram latency = new Histogram(LATENCY_BUCKETS);
+
+        void done(long startTime) {
+            requests.increment();
+            latency.observeNanos(startTime);
+        }
+
+        void error() {
+            errors.increment();
+        }
+    }
+
+    static class Operation {
+
+        LongAdder failures = new LongAdder();
+        Histogram latency = new Histogram(LATENCY_BUCKETS);
+    }
+
+    static ConcurrentHashMap<String, Requests> servlets = new ConcurrentHashMap<>();
+
+    // Keyed by the algorithm object; the JOSE name is only needed when exporting
+    static ConcurrentHashMap<SignatureAlgorithms, Operation> signatures =
+            new ConcurrentHashMap<>();
+
+    static ConcurrentHashMap<SignatureAlgorithms, Operation> validations =
+            new ConcurrentHashMap<>();
+
+    static ConcurrentHashMap<String, Histogram> payloadSizes = new ConcurrentHashMap<>();
+
+    static Requests servlet(String name) {
+        servlets.putIfAbsent(name, new Requests());
+        return servlets.get(name);
+    }
+
+    static Operation operation(ConcurrentHashMap<SignatureAlgorithms, Operation> operations,
+                               SignatureAlgorithms algorithm) {
+        Operation operation = operations.get(algorithm);
+        if (operation == null) {
+            operations.putIfAbsent(algorithm, new Operation());
+            operation = operations.get(algorithm);
+        }
+        return operation;
+    }
+
+    static void signed(SignatureAlgorithms algorithm, long startTime) {
+        operation(signatures, algorithm).latency.observeNanos(startTime);
+    }
+
+    static void validated(SignatureAlgorithms algorithm, long startTime, boolean valid) {
+        Operation operation = operation(validations, algorithm);
+        operation.latency.observeNanos(startTime);
+        if (!valid) {
+            operation.failures.increment();
+        }
+    }
+
+    static void payload(String operation, int size) {
+        Histogram histogram = payloadSizes.get(operation);
+        if (histogram == null) {
+            payloadSizes.putIfAbsent(operation, new Histogram(SIZE_BUCKETS));
+            histogram = payloadSizes.get(operation);
+        }
+        histogram.observe(size);
+    }
+
+    static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+           .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void cache(StringBuilder out, String metric, String cache, long value) {
+        out.append(PREFIX).append("cache_").append(metric)
+           .append("{cache=\"").append(cache).append("\"} ").append(value).append('\n');
+    }
+
+    static void writeOperations(StringBuilder out,
+                                ConcurrentHashMap<SignatureAlgorithms, Operation> operations,
+                                String name,
+                                String help) throws IOException {
+        // Sorted for a stable output order
+        TreeMap<String, Operation> sorted = new TreeMap<>();
+        for (Map.Entry<SignatureAlgorithms, Operation> entry : operations.entrySet()) {
+            sorted.put(entry.getKey().getAlgorithmId(AlgorithmPreferences.JOSE),
+                       entry.getValue());
+        }
+        header(out, PREFIX + name + "_duration_seconds", "histogram", help + " latency");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            entry.getValue().latency.write(out,
+                                           PREFIX + name + "_duration_seconds",
+                                           "alg=\"" + entry.getKey() + "\"");
+        }
+        header(out, PREFIX + name + "_failures_total", "counter", help + " failures");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            out.append(PREFIX).append(name).append("_failures_total{alg=\"")
+               .append(entry.getKey()).append("\"} ")
+               .append(entry.getValue().failures.sum()).append('\n');
+        }
+    }
+
+    static String export() throws IOException {
+        StringBuilder out = new StringBuilder();
+        TreeMap<String, Requests> sortedServlets = new TreeMap<>(servlets);
+
+        header(out, PREFIX + "requests_total", "counter", "Requests per servlet");
+        for (Map.Entry<String, Requests> entry : sortedServlets.entrySet()) {
+            out.append(PREFIX).append("requests_total{servlet=\"").append(entry.getKey())
+               .append("\"} ").append(entry.getValue().requests.sum()).append('\n');
+        }
+        header(out, PREFIX + "request_errors_total", "counter", "Failed requests per servlet");
+        for (Map.Entry<String, Requests> entry : sortedServlets.entrySet()) {
+            out.append(PREFIX).append("request_errors_total{servlet=\"").append(entry.getKey())
+               .append("\"} ").append(entry.getValue().errors.sum()).append('\n');
+        }
+        header(out, PREFIX + "request_duration_seconds", "histogram", "Request latency");
+        for (Map.Entry<String, Requests> entry : sortedServlets.entrySet()) {
+            entry.getValue().latency.write(out,
+                                           PREFIX + "request_duration_seconds",
+                                           "servlet=\"" + entry.getKey() + "\"");
+        }
+
+        writeOperations(out, signatures, "sign", "Signature creation");
+        writeOperations(out, validations, "verify", "Signature validation");
+
+        header(out, PREFIX + "payload_bytes", "histogram", "Canonicalized JWS payload size");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(payloadSizes).entrySet()) {
+            entry.getValue().write(out,
+                                   PREFIX + "payload_bytes",
+                                   "operation=\"" + entry.getKey() + "\"");
+        }
+
+        String[] cacheNames = {"signing_key", "validation_key", "canonical", "verification"};
+        BoundedCache<?, ?>[] caches = {SigningKey.cache,
+                                       ValidationKey.cache,
+                                       CanonicalCache.cache,
+                                       VerificationCache.cache};
+        header(out, PREFIX + "cache_size", "gauge", "Number of cached items");
+        for (int i = 0; i < caches.length; i++) {
+            cache(out, "size", cacheNames[i], caches[i].size());
+        }
+        header(out, PREFIX + "cache_weight_bytes", "gauge", "Approximate size of cached data");
+        cache(out, "weight_bytes", "canonical", CanonicalCache.cache.getWeight());
+        header(out, PREFIX + "cache_hits_total", "counter", "Cache hits");
+        for (int i = 0; i < caches.length; i++) {
+            cache(out, "hits_total", cacheNames[i], caches[i].getHits());
+        }
+        header(out, PREFIX + "cache_misses_total", "counter", "Cache misses");
+        for (int i = 0; i < caches.length; i++) {
+            cache(out, "misses_total", cacheNames[i], caches[i].getMisses());
+        }
+        header(out, PREFIX + "cache_evictions_total", "counter", "Cache evictions");
+        for (int i = 0; i < caches.length; i++) {
+            cache(out, "evictions_total", cacheNames[i], caches[i].getEvictions());
+        }
+        header(out, PREFIX + "verify_coalesced_total", "counter",
+               "Validations that waited for an identical validation in progress");
+        out.append(PREFIX).append("verify_coalesced_total ")
+           .append(VerificationCache.coalesced.sum()).append('\n');
+
+        header(out, PREFIX + "crypto_active_threads", "gauge", "Busy crypto executor threads");
+        out.append(PREFIX).append("crypto_active_threads ")
+           .append(CryptoExecutor.executor.getActiveCount()).append('\n');
+        header(out, PREFIX + "crypto_queue_size", "gauge", "Requests waiting for a crypto thread");
+        out.append(PREFIX).append("crypto_queue_size ")
+           .append(CryptoExecutor.executor.getQueue().size()).append('\n');
+        header(out, PREFIX + "crypto_rejected_total", "counter",
+               "Requests rejected since the crypto queue was full");
+        out.append(PREFIX).append("crypto_rejected_total ")
+           .append(CryptoExecutor.rejected.sum()).append('\n');
+        return out.toString();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+
+import java.util.concurrent.CountDownLatch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.webpki.crypto.AlgorithmPreferences;
+
+import org.webpki.jose.JOSEKeyWords;
+
+import org.webpki.jose.jws.JWSDecoder;
+
+import org.webpki.json.JSONArrayReader;
+import org.webpki.json.JSONArrayWriter;
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONObjectWriter;
+import org.webpki.json.JSONParser;
+import org.webpki.json.JSONTypes;
+
+/**
+ * JWS/CT objects signed by several parties.
+ *
+ * The signature property holds an array of detached JWS strings which all
+ * sign the same payload: the canonicalized object without the signature
+ * property.  The payload is therefore canonicalized once while the
+ * signatures are verified in parallel.  A Policy decides whether the
+ * object as a whole is valid: all signatures, any signature or at least a
+ * threshold number of them must be valid.
+ *
+ * There is either a single validation key for all signatures or one per
+ * signature, in the same order as the signatures.
+ */
+class MultiSignature {
+
+    static final int MAX_SIGNATURES = 64;
+
+    static final String POLICY_ALL = "all";
+    static final String POLICY_ANY = "any";
+
+    static class Policy {
+
+        String text;
+        int threshold;      // 0 = all
+
+        Policy(String text) throws IOException {
+            this.text = text;
+            if (text.equals(POLICY_ANY)) {
+                threshold = 1;
+            } else if (!text.equals(POLICY_ALL)) {
+                try {
+                    threshold = Integer.parseInt(text);
+                } catch (NumberFormatException e) {
+                    threshold = -1;
+                }
+                if (threshold < 1) {
+                    throw new IOException("Policy must be \"" + POLICY_ALL + "\", \"" +
+                                          POLICY_ANY + "\" or a positive number: " + text);
+                }
+            }
+        }
+
+        int required(int signatures) {
+            return threshold == 0 ? signatures : threshold;
+        }
+    }
+
+    static class Result {
+
+        String jwsString;
+        JWSDecoder decoder;         // null if the JWS could not be decoded
+        String keyId;
+        boolean valid;
+        Exception error;
+    }
+
+    Result[] results;
+    byte[] payload;
+    Policy policy;
+    int valid;
+
+    /**
+     * Verify all signatures of a multi-signed object.
+     *
+     * The signature property is removed from the object.
+     */
+    MultiSignature(JSONObjectReader signedObject,
+                   String signatureLabel,
+                   final String[] validationKeys,
+                   Policy policy) throws IOException {
+        this.policy = policy;
+        String[] signatures = removeSignatures(signedObject, signatureLabel);
+        if (signatures.length == 0) {
+            throw new IOException("Empty signature array");
+        }
+        if (policy.required(signatures.length) > signatures.length) {
+            throw new IOException("The policy requires " + policy.threshold +
+                                  " valid signatures but there are only " + signatures.length);
+        }
+        if (validationKeys.length != 1 && validationKeys.length != signatures.length) {
+            throw new IOException("Expected 1 or " + signatures.length +
+                                  " validation keys, got " + validationKeys.length);
+        }
+        results = new Result[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            results[i] = new Result();
+            results[i].jwsString = signatures[i];
+        }
+        payload = CreateServlet.canonicalize(signedObject);
+
+        // Helpers take signatures from a shared counter and so does this
+        // thread.  Whatever is left when this thread runs out of signatures
+        // is being verified, which makes the wait below safe also on a crypto
+        // thread, and helpers that start late have nothing to do.
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(results.length);
+        Runnable worker = new Runnable() {
+
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < results.length) {
+                    try {
+                        verify(results[i], validationKeys[validationKeys.length == 1 ? 0 : i]);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+
+        };
+        for (int i = 1; i < Math.min(results.length, CryptoExecutor.THREADS); i++) {
+            if (!CryptoExecutor.tryExecuteHelper(worker)) {
+                break;
+            }
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying signatures");
+        }
+        for (Result result : results) {
+            if (result.valid) {
+                valid++;
+            }
+        }
+    }
+
+    static boolean isMultiSigned(JSONObjectReader signedObject, String signatureLabel)
+            throws IOException {
+        return signedObject.hasProperty(signatureLabel) &&
+               signedObject.getPropertyType(signatureLabel) == JSONTypes.ARRAY;
+    }
+
+    /**
+     * Get and remove the signatures, leaving the signed data.
+     *
+     * A single signature (a string) is returned as an array of one.
+     */
+    static String[] removeSignatures(JSONObjectReader signedObject, String signatureLabel)
+            throws IOException {
+        ArrayList<String> signatures = new ArrayList<>();
+        if (isMultiSigned(signedObject, signatureLabel)) {
+            JSONArrayReader array = signedObject.getArray(signatureLabel);
+            while (array.hasMore()) {
+                if (signatures.size() == MAX_SIGNATURES) {
+                    throw new IOException("More than " + MAX_SIGNATURES + " signatures");
+                }
+                String signature = array.getString();
+                // A repeated signature would count twice against the policy
+                if (signatures.contains(signature)) {
+                    throw new IOException("Duplicate signature: " + signature);
+                }
+                signatures.add(signature);
+            }
+        } else {
+            signatures.add(signedObject.getString(signatureLabel));
+        }
+        signedObject.removeProperty(signatureLabel);
+        return signatures.toArray(new String[0]);
+    }
+
+    static void setSignatures(JSONObjectWriter writer, String signatureLabel, String[] signatures)
+            throws IOException {
+        JSONArrayWriter array = writer.setArray(signatureLabel);
+        for (String signature : signatures) {
+            array.setString(signature);
+        }
+    }
+
+    // Several keys in one form field are separated by empty lines
+    static String[] splitKeys(String[] validationKeys) throws IOException {
+        ArrayList<String> keys = new ArrayList<>();
+        if (validationKeys != null) {
+            for (String text : validationKeys) {
+                for (String key : text.replace("\r", "").split("\n\\s*\n")) {
+                    if (!key.trim().isEmpty()) {
+                        keys.add(key.trim());
+                    }
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new IOException("Missing validation key");
+        }
+        return keys.toArray(new String[0]);
+    }
+
+    void verify(Result result, String validationKey) {
+        try {
+            result.decoder = new JWSDecoder(result.jwsString);
+            result.keyId = JSONParser.parse(result.decoder.getJWSHeaderAsString())
+                    .getStringConditional(JOSEKeyWords.KID_JSON);
+            ValidationKey decodedKey = ValidationKey.getValidationKey(validationKey,
+                    result.decoder.getSignatureAlgorithm().isSymmetric());
+            VerificationCache.validate(decodedKey, result.decoder, payload, result.jwsString);
+            result.valid = true;
+        } catch (Exception e) {
+            result.error = e;
+        }
+    }
+
+    boolean isValid() {
+        return valid >= policy.required(results.length);
+    }
+
+    String getOutcome() {
+        return valid + " of " + results.length + " signatures valid, " +
+               (policy.threshold == 0 ? "all" : String.valueOf(policy.threshold)) + " required";
+    }
+
+    static String getError(Exception e) {
+        return e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+    }
+
+    // Batch mode report, see ValidateServlet
+    void report(JSONObjectWriter result) throws IOException {
+        result.setBoolean(ValidateServlet.RSP_VALID, isValid());
+        if (!isValid()) {
+            result.setString(ValidateServlet.RSP_ERROR, "Policy not satisfied: " + getOutcome());
+        }
+        JSONArrayWriter array = result.setArray(ValidateServlet.RSP_SIGNATURES);
+        for (Result signature : results) {
+            JSONObjectWriter item = array.setObject();
+            if (signature.decoder != null) {
+                item.setString(ValidateServlet.RSP_ALGORITHM,
+                               signature.decoder.getSignatureAlgorithm()
+                                   .getAlgorithmId(AlgorithmPreferences.JOSE));
+            }
+            if (signature.keyId != null) {
+                item.setString(ValidateServlet.RSP_KEY_ID, signature.keyId);
+            }
+            item.setBoolean(ValidateServlet.RSP_VALID, signature.valid);
+            if (signature.error != null) {
+                item.setString(ValidateServlet.RSP_ERROR, getError(signature.error));
+            }
+        }
+    }
+}
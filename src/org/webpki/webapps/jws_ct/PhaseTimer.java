@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Per-request phase timing based on System.nanoTime().
+ *
+ * Each call to phase() closes the current phase.  The timings are reported
+ * in a Server-Timing header which must be set before the page is streamed,
+ * so the rendering phase is only visible in the (FINE level) log line.
+ */
+class PhaseTimer {
+
+    static final int MAX_PHASES = 16;
+
+    String servlet;
+    long start;
+    long last;
+
+    String[] names = new String[MAX_PHASES];
+    long[] durations = new long[MAX_PHASES];
+    int count;
+
+    PhaseTimer(String servlet) {
+        this.servlet = servlet;
+        start = last = System.nanoTime();
+    }
+
+    void phase(String name) {
+        long now = System.nanoTime();
+        if (count < MAX_PHASES) {
+            names[count] = name;
+            durations[count++] = now - last;
+        }
+        last = now;
+    }
+
+    // Milliseconds with microsecond resolution, which is what browsers display
+    static StringBuilder milliseconds(StringBuilder out, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        out.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            out.append(fraction < 10 ? "00" : "0");
+        }
+        return out.append(fraction);
+    }
+
+    String serverTiming() {
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            milliseconds(header.append(names[i]).append(";dur="), durations[i]).append(", ");
+        }
+        return milliseconds(header.append("total;dur="), last - start).toString();
+    }
+
+    void setHeader(HttpServletResponse response) {
+        response.setHeader("Server-Timing", serverTiming());
+    }
+
+    void log(Logger logger) {
+        if (logger.isLoggable(Level.FINE)) {
+            StringBuilder line = new StringBuilder("timing servlet=").append(servlet);
+            for (int i = 0; i < count; i++) {
+                milliseconds(line.append(' ').append(names[i]).append('='), durations[i]);
+            }
+            logger.fine(milliseconds(line.append(" total="), System.nanoTime() - start)
+                .append(" (ms)").toString());
+        }
+    }
+}
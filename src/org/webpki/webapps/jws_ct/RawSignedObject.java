@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Locates the top-level JWS/CT signature property in raw UTF-8 JSON.
+ *
+ * This is a scanner, not a parser: it only keeps track of strings and
+ * nesting so that the signature property can be cut out of the input,
+ * leaving the rest of the object untouched for canonicalization.  Anything
+ * unexpected (escaped property names, a duplicate or missing signature, a
+ * non-detached JWS, a scanner surprise) makes <code>split()</code> return
+ * null, and the caller then takes the ordinary parser route which also
+ * produces the proper diagnostics.
+ */
+class RawSignedObject {
+
+    String jwsString;
+
+    byte[] unsigned;    // The input without the signature property
+
+    private RawSignedObject(String jwsString, byte[] unsigned) {
+        this.jwsString = jwsString;
+        this.unsigned = unsigned;
+    }
+
+    static int skipWhitespace(byte[] json, int i) {
+        while (i < json.length &&
+               (json[i] == ' ' || json[i] == '\n' || json[i] == '\r' || json[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    // Returns the index after the closing quote or -1
+    static int skipString(byte[] json, int i) {
+        while (++i < json.length) {
+            if (json[i] == '\\') {
+                i++;
+            } else if (json[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the index after the value or -1
+    static int skipValue(byte[] json, int i) {
+        int depth = 0;
+        while (i < json.length) {
+            switch (json[i]) {
+                case '"':
+                    i = skipString(json, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    if (depth == 0) {
+                        return i;
+                    }
+                    continue;
+
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+
+                case '}':
+                case ']':
+                    if (depth == 0) {
+                        return i;
+                    }
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                    break;
+
+                case ',':
+                    if (depth == 0) {
+                        return i;
+                    }
+                    break;
+
+                default:
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    static boolean matches(byte[] json, int start, int end, byte[] label) {
+        if (end - start != label.length) {
+            return false;
+        }
+        for (int q = 0; q < label.length; q++) {
+            if (json[start + q] != label[q]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static RawSignedObject split(byte[] json, String signatureLabel) throws IOException {
+        byte[] label = signatureLabel.getBytes("utf-8");
+        int memberStart = -1;     // Where the cut begins and ends
+        int memberEnd = -1;
+        int valueStart = -1;      // The signature string without quotes
+        int valueEnd = -1;
+        int i = skipWhitespace(json, 0);
+        if (i == json.length || json[i++] != '{') {
+            return null;
+        }
+        int previousEnd = -1;     // End of the previous member's value
+        while (true) {
+            int keyStart = skipWhitespace(json, i);
+            if (keyStart == json.length) {
+                return null;
+            }
+            if (json[keyStart] != '"') {
+                return null;
+            }
+            int keyEnd = skipString(json, keyStart);
+            if (keyEnd < 0) {
+                return null;
+            }
+            for (int q = keyStart + 1; q < keyEnd - 1; q++) {
+                if (json[q] == '\\') {
+                    return null;
+                }
+            }
+            i = skipWhitespace(json, keyEnd);
+            if (i == json.length || json[i++] != ':') {
+                return null;
+            }
+            int start = skipWhitespace(json, i);
+            int end = skipValue(json, start);
+            if (end <= start) {
+                return null;
+            }
+            if (matches(json, keyStart + 1, keyEnd - 1, label)) {
+                if (valueStart >= 0 || json[start] != '"') {
+                    return null;
+                }
+                valueStart = start + 1;
+                valueEnd = end - 1;
+                if (previousEnd < 0) {
+                    // First member: cut up to the next member, if there is one
+                    memberStart = keyStart;
+                    memberEnd = end;
+                } else {
+                    // Otherwise cut from the end of the previous member
+                    memberStart = previousEnd;
+                    memberEnd = end;
+                }
+            }
+            previousEnd = end;
+            i = skipWhitespace(json, end);
+            if (i == json.length) {
+                return null;
+            }
+            if (json[i] == '}') {
+                break;
+            }
+            if (json[i++] != ',') {
+                return null;
+            }
+            if (memberStart == keyStart) {
+                memberEnd = i;
+            }
+        }
+        if (skipWhitespace(json, i + 1) != json.length || valueStart < 0) {
+            return null;
+        }
+        String jwsString = new String(json, valueStart, valueEnd - valueStart, "utf-8");
+        if (jwsString.indexOf('\\') >= 0) {
+            return null;
+        }
+        // JWS/CT signatures are always detached
+        int firstDot = jwsString.indexOf('.');
+        if (firstDot < 0 || jwsString.indexOf('.', firstDot + 1) != firstDot + 1) {
+            return null;
+        }
+        ByteArrayOutputStream unsigned = new ByteArrayOutputStream(json.length);
+        unsigned.write(json, 0, memberStart);
+        unsigned.write(json, memberEnd, json.length - memberEnd);
+        return new RawSignedObject(jwsString, unsigned.toByteArray());
+    }
+}
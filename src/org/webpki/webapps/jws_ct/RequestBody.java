@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Bounded reading of raw (application/json) request bodies.
+ *
+ * A declared Content-Length is checked before anything is read so oversized
+ * uploads are rejected without being received, and the size is checked again
+ * while reading since chunked and inflated (see CompressionFilter) bodies have
+ * no declared length.  Known lengths are read straight into an array of the
+ * right size; there are no Strings and no buffer copies on the way.
+ *
+ * The time limit covers the entire body.  It is checked between reads (a
+ * single blocking read is bounded by the connector's timeout) and stops slow
+ * clients from occupying a thread for as long as they like.
+ */
+class RequestBody extends InputStream {
+
+    static class LimitException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        int status;
+
+        LimitException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    InputStream in;
+    long remaining;
+    long deadline;
+
+    // Read ahead by readLine()
+    byte[] lineBuffer;
+    int position;
+    int limit;
+
+    RequestBody(InputStream in) {
+        this.in = in;
+        remaining = JwsCtService.maxBodySize;
+        deadline = System.nanoTime() + JwsCtService.bodyTimeout * 1000000000L;
+    }
+
+    static boolean isJson(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.startsWith(JsonSignServlet.JSON_CONTENT_TYPE);
+    }
+
+    // HTTP status for a failed request, limits get their own
+    static int status(Exception e) {
+        return e instanceof LimitException ?
+                ((LimitException) e).status : HttpServletResponse.SC_BAD_REQUEST;
+    }
+
+    static LimitException tooLarge() {
+        return new LimitException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                                  "Request body exceeds " + JwsCtService.maxBodySize + " bytes");
+    }
+
+    static byte[] read(HttpServletRequest request) throws IOException {
+        return read(request.getInputStream(), request.getContentLengthLong());
+    }
+
+    static byte[] read(InputStream in, long length) throws IOException {
+        if (length > JwsCtService.maxBodySize) {
+            throw tooLarge();
+        }
+        RequestBody body = new RequestBody(in);
+        byte[] data;
+        int offset = 0;
+        if (length >= 0) {
+            data = new byte[(int) length];
+            while (offset < data.length) {
+                int n = body.read(data, offset, data.length - offset);
+                if (n < 0) {
+                    throw new IOException("Request body shorter than declared");
+                }
+                offset += n;
+            }
+        } else {
+            data = new byte[CanonicalWriter.BUFFER_SIZE];
+            int n;
+            while ((n = body.read(data, offset, data.length - offset)) >= 0) {
+                offset += n;
+                if (offset == data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min(data.length * 2L,
+                                                              JwsCtService.maxBodySize + 1L));
+                }
+            }
+        }
+        return offset == data.length ? data : Arrays.copyOf(data, offset);
+    }
+
+    // Batch (NDJSON) mode.  Both limits apply to each line rather than to the
+    // entire stream since a batch may legitimately be larger and take longer
+    // than any single body.  Returns null at the end of the stream.
+    byte[] readLine() throws IOException {
+        if (lineBuffer == null) {
+            lineBuffer = new byte[CanonicalWriter.BUFFER_SIZE];
+        }
+        remaining = JwsCtService.maxBodySize;
+        deadline = System.nanoTime() + JwsCtService.bodyTimeout * 1000000000L;
+        if (in instanceof CompressionFilter.InflatingInputStream) {
+            ((CompressionFilter.InflatingInputStream) in).restartCount(limit - position,
+                                                                       lineBuffer.length);
+        }
+        ByteArrayOutputStream line = null;
+        while (true) {
+            if (position == limit) {
+                checkDeadline();
+                int n = in.read(lineBuffer, 0, lineBuffer.length);
+                position = 0;
+                limit = Math.max(n, 0);
+                if (n < 0) {
+                    return line == null ? null : stripCarriageReturn(line.toByteArray());
+                }
+            }
+            int start = position;
+            while (position < limit && lineBuffer[position] != '\n') {
+                position++;
+            }
+            if ((remaining -= position - start) < 0) {
+                throw tooLarge();
+            }
+            if (position < limit) {
+                // Complete line, the common case needs no intermediate buffer
+                byte[] data = line == null ?
+                        Arrays.copyOfRange(lineBuffer, start, position++)
+                                           :
+                        append(line, start, position++);
+                return stripCarriageReturn(data);
+            }
+            if (line == null) {
+                line = new ByteArrayOutputStream();
+            }
+            line.write(lineBuffer, start, position - start);
+        }
+    }
+
+    byte[] append(ByteArrayOutputStream line, int start, int end) {
+        line.write(lineBuffer, start, end - start);
+        return line.toByteArray();
+    }
+
+    static byte[] stripCarriageReturn(byte[] line) {
+        return line.length > 0 && line[line.length - 1] == '\r' ?
+                Arrays.copyOf(line, line.length - 1) : line;
+    }
+
+    void checkDeadline() throws IOException {
+        if (System.nanoTime() - deadline > 0) {
+            throw new LimitException(HttpServletResponse.SC_REQUEST_TIMEOUT,
+                                     "Request body not received within " +
+                                         JwsCtService.bodyTimeout + " seconds");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkDeadline();
+        int b = in.read();
+        if (b >= 0 && --remaining < 0) {
+            throw tooLarge();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkDeadline();
+        // Reading one byte more than allowed is how an overflow is detected
+        int n = in.read(buffer, offset, (int) Math.min(length, remaining + 1));
+        if (n > 0 && (remaining -= n) < 0) {
+            throw tooLarge();
+        }
+        return n;
+    }
+}
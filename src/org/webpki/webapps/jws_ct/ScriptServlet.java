@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Page scripts as static resources.
+ *
+ * The URLs include a hash of the content so the scripts can be cached
+ * "forever" by browsers and proxies; a changed script gets a new URL and
+ * the (revalidated) page referring to it is changed as well.  Scripts are
+ * created and compressed once, on first use.
+ */
+public class ScriptServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String JS_CONTENT_TYPE = "text/javascript; charset=utf-8";
+
+    abstract static class Script extends CachedPage.Holder {
+
+        String name;
+
+        Script(String name) {
+            this.name = name;
+        }
+
+        abstract String render() throws IOException;
+
+        @Override
+        CachedPage renderPage() throws IOException {
+            CachedPage script = new CachedPage(render().getBytes("utf-8"), JS_CONTENT_TYPE);
+            script.cacheControl = CachedPage.IMMUTABLE;
+            return script;
+        }
+
+        // Relative to the application
+        String getUrl() throws IOException {
+            return "script/" + name + "-" + get().version + ".js";
+        }
+    }
+
+    static final Script CREATE_SCRIPT = new Script("create") {
+
+        @Override
+        String render() throws IOException {
+            return CreateServlet.javaScript();
+        }
+
+    };
+
+    static final Script WEBCRYPTO_SCRIPT = new Script("webcrypto") {
+
+        @Override
+        String render() throws IOException {
+            return WebCryptoServlet.javaScript();
+        }
+
+    };
+
+    static final Script[] SCRIPTS = {CREATE_SCRIPT, WEBCRYPTO_SCRIPT};
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        // "/name-version.js", a page served by another node may get here first
+        String file = request.getPathInfo();
+        if (file != null && file.endsWith(".js")) {
+            for (Script script : SCRIPTS) {
+                // The version is Base64URL which may contain '-' as well
+                String prefix = "/" + script.name + "-";
+                if (file.startsWith(prefix)) {
+                    CachedPage page = script.get();
+                    if (file.substring(prefix.length(), file.length() - 3).equals(page.version)) {
+                        page.serve(request, response);
+                        return;
+                    }
+                }
+            }
+        }
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.security.KeyPair;
+
+import java.security.cert.X509Certificate;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.util.Base64URL;
+import org.webpki.util.PEMDecoder;
+
+/**
+ * Decoded private key plus derived data, cached by a digest of the key material.
+ */
+class SigningKey {
+
+    static final int MAX_CACHED_KEYS = 256;
+
+    static final BoundedCache<String, SigningKey> cache =
+            new BoundedCache<>("Signing key cache", MAX_CACHED_KEYS);
+
+    KeyPair keyPair;
+
+    ValidationKey validationKey;      // PEM or JWK depending on the private key format
+
+    X509Certificate[] certificatePath;  // Null if not requested
+
+    SigningKey(KeyPair keyPair, ValidationKey validationKey, X509Certificate[] certificatePath) {
+        this.keyPair = keyPair;
+        this.validationKey = validationKey;
+        this.certificatePath = certificatePath;
+    }
+
+    static String getCacheKey(byte[] privateKeyBlob, byte[] certificatePathBlob)
+            throws IOException {
+        byte[] material = privateKeyBlob;
+        if (certificatePathBlob != null) {
+            material = new byte[privateKeyBlob.length + 1 + certificatePathBlob.length];
+            System.arraycopy(privateKeyBlob, 0, material, 0, privateKeyBlob.length);
+            System.arraycopy(certificatePathBlob, 0, material,
+                             privateKeyBlob.length + 1, certificatePathBlob.length);
+        }
+        return Base64URL.encode(HashAlgorithms.SHA256.digest(material));
+    }
+
+    static SigningKey getSigningKey(final byte[] privateKeyBlob,
+                                    final byte[] certificatePathBlob) throws Exception {
+        return cache.get(getCacheKey(privateKeyBlob, certificatePathBlob),
+                         new BoundedCache.Loader<String, SigningKey>() {
+
+            @Override
+            public SigningKey load(String key) throws Exception {
+                FlightEvents.KeyDecode event = new FlightEvents.KeyDecode();
+                event.begin();
+                boolean jwk = privateKeyBlob[0] == '{';
+                event.keyFormat = jwk ? "JWK" : "PEM";
+                try {
+                    KeyPair keyPair = CreateServlet.decodePrivateKey(privateKeyBlob);
+                    event.keyType = FlightEvents.keyTypeOf(keyPair.getPrivate().getAlgorithm());
+                    SigningKey signingKey =
+                        new SigningKey(keyPair,
+                                       ValidationKey.create(keyPair.getPublic(),
+                                                            CreateServlet.getValidationKey(keyPair,
+                                                                                           jwk),
+                                                            jwk),
+                                       certificatePathBlob == null ?
+                                   null : PEMDecoder.getCertificatePath(certificatePathBlob));
+                    event.done(null, privateKeyBlob.length, null);
+                    return signingKey;
+                } catch (Exception e) {
+                    event.done(null, privateKeyBlob.length, e);
+                    throw e;
+                }
+            }
+
+        });
+    }
+}
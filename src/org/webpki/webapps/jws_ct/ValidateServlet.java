@@ -16,7 +16,12 @@
  */
 package org.webpki.webapps.jws_ct;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.security.GeneralSecurityException;
 
 import java.security.cert.X509Certificate;
 
@@ -24,155 +29,429 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.webpki.crypto.AlgorithmPreferences;
 import org.webpki.crypto.CertificateInfo;
+import org.webpki.crypto.SignatureAlgorithms;
+
+import org.webpki.jose.JOSEKeyWords;
 
 import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
 import org.webpki.json.JSONParser;
 
-import org.webpki.jose.jws.JWSHmacValidator;
 import org.webpki.jose.jws.JWSValidator;
-import org.webpki.jose.jws.JWSAsymSignatureValidator;
 import org.webpki.jose.jws.JWSDecoder;
 
 import org.webpki.util.Base64URL;
-import org.webpki.util.PEMDecoder;
 
-public class ValidateServlet extends HttpServlet {
+public class ValidateServlet extends AsyncServlet {
 
     private static final long serialVersionUID = 1L;
 
     static Logger logger = Logger.getLogger(ValidateServlet.class.getName());
 
+    static Metrics.Requests metrics = Metrics.servlet("validate");
+
     // HTML form arguments
     static final String JWS_OBJECT         = "jws";
 
     static final String JWS_VALIDATION_KEY = "vkey";
     
     static final String JWS_SIGN_LABL      = "siglbl";
+
+    static final String JWS_POLICY         = "policy";
     
-    public void doPost(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
+    // Batch mode: one signed JSON object per line, validation key etc. in the query string
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    // Batch mode result properties
+    static final String RSP_LINE           = "line";
+    static final String RSP_VALID          = "valid";
+    static final String RSP_ALGORITHM      = "alg";
+    static final String RSP_KEY_ID         = "kid";
+    static final String RSP_ERROR          = "error";
+    static final String RSP_SIGNATURES     = "signatures";
+
+    // Flush the result stream at least this often
+    static final int BATCH_FLUSH_INTERVAL  = 100;
+
+    // The actual cryptographic validation (see VerificationCache), recorded
+    // in the metrics and the flight recorder
+    static void verify(JWSValidator validator, JWSDecoder decoder, byte[] detachedPayload)
+            throws IOException, GeneralSecurityException {
+        FlightEvents.Validate event = new FlightEvents.Validate();
+        event.begin();
+        long startTime = System.nanoTime();
+        byte[] payload = detachedPayload == null ? decoder.getPayload() : detachedPayload;
+        Exception error = null;
         try {
-            request.setCharacterEncoding("utf-8");
-            if (!request.getContentType().startsWith("application/x-www-form-urlencoded")) {
-                throw new IOException("Unexpected MIME type:" + request.getContentType());
+            if (detachedPayload == null) {
+                validator.validate(decoder);
+            } else {
+                validator.validate(decoder, detachedPayload);
             }
+        } catch (IOException | GeneralSecurityException e) {
+            error = e;
+            throw e;
+        } finally {
+            event.done(decoder.getSignatureAlgorithm(), payload.length, error);
+            Metrics.validated(decoder.getSignatureAlgorithm(), startTime, error == null);
+            Metrics.payload("verify", payload.length);
+        }
+    }
 
-            // Get the three input data items
-            JSONObjectReader parsedObject = JSONParser.parse(
-                    CreateServlet.getParameter(request, JWS_OBJECT));
-            String validationKey = CreateServlet.getParameter(request, JWS_VALIDATION_KEY);
-            String signatureLabel = CreateServlet.getParameter(request, JWS_SIGN_LABL);
-
-            // Create a pretty-printed JSON object without canonicalization
-            String prettySignature = parsedObject.serializeToString(JSONOutputFormats.PRETTY_HTML);
-            
-            // Now begin the real work...
-            
-            // Decode
-            JWSDecoder JWSDecoder = new JWSDecoder(parsedObject, signatureLabel);
-            
-            // For demo purposes only
-            String jwsString = parsedObject.getString(signatureLabel);
-
-            X509Certificate[] certificatePath = JWSDecoder.getOptionalCertificatePath();
-            StringBuilder certificateData = null;
-            if (certificatePath != null) {
-                for (X509Certificate certificate : certificatePath) {
-                    if (certificateData == null) {
-                        certificateData = new StringBuilder();
+    void batchValidate(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        String validationKey = CreateServlet.getParameter(request, JWS_VALIDATION_KEY);
+        String signatureLabel = request.getParameter(JWS_SIGN_LABL);
+        if (signatureLabel == null) {
+            signatureLabel = CreateServlet.DEFAULT_SIG_LBL;
+        }
+        // The same key is used for the entire batch so we only look it up once
+        // (per key type), the first time it is actually needed
+        ValidationKey hmacKey = null;
+        ValidationKey asymKey = null;
+        // Multi-signed objects may have a key per signature
+        String[] validationKeys = null;
+        MultiSignature.Policy policy = new MultiSignature.Policy(
+                CreateServlet.getParameter(request, JWS_POLICY, MultiSignature.POLICY_ALL));
+        response.setContentType(NDJSON_CONTENT_TYPE + "; charset=utf-8");
+        RequestBody in = new RequestBody(request.getInputStream());
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(response.getOutputStream(), "utf-8"));
+        byte[] rawObject;
+        int lineNumber = 0;
+        boolean written = false;
+        try {
+            while ((rawObject = in.readLine()) != null) {
+                lineNumber++;
+                if (isBlank(rawObject)) {
+                    continue;
+                }
+                JSONObjectWriter result = new JSONObjectWriter().setInt(RSP_LINE, lineNumber);
+                written = true;
+                try {
+                    // Batch mode never shows the object so there is no need for a DOM
+                    // unless the input is too odd for the scanner
+                    RawSignedObject rawSigned = RawSignedObject.split(rawObject, signatureLabel);
+                    JWSDecoder JWSDecoder;
+                    String jwsString;
+                    byte[] detachedPayload = null;
+                    if (rawSigned == null) {
+                        JSONObjectReader parsedObject = JSONParser.parse(rawObject);
+                        if (MultiSignature.isMultiSigned(parsedObject, signatureLabel)) {
+                            if (validationKeys == null) {
+                                validationKeys = MultiSignature.splitKeys(
+                                        request.getParameterValues(JWS_VALIDATION_KEY));
+                            }
+                            new MultiSignature(parsedObject, signatureLabel, validationKeys, policy)
+                                .report(result);
+                            writeResult(out, result, lineNumber);
+                            continue;
+                        }
+                        JWSDecoder = new JWSDecoder(parsedObject, signatureLabel);
+                        jwsString = parsedObject.getString(signatureLabel);
+                    } else {
+                        JWSDecoder = new JWSDecoder(rawSigned.jwsString);
+                        jwsString = rawSigned.jwsString;
+                        detachedPayload = CanonicalCache.getCanonical(rawSigned.unsigned);
+                    }
+                    SignatureAlgorithms signatureAlgorithm = JWSDecoder.getSignatureAlgorithm();
+                    result.setString(RSP_ALGORITHM, 
+                                     signatureAlgorithm.getAlgorithmId(AlgorithmPreferences.JOSE));
+                    String keyId = JSONParser.parse(JWSDecoder.getJWSHeaderAsString())
+                            .getStringConditional(JOSEKeyWords.KID_JSON);
+                    if (keyId != null) {
+                        result.setString(RSP_KEY_ID, keyId);
+                    }
+                    ValidationKey decodedKey;
+                    if (signatureAlgorithm.isSymmetric()) {
+                        if (hmacKey == null) {
+                            hmacKey = ValidationKey.getValidationKey(validationKey, true);
+                        }
+                        decodedKey = hmacKey;
                     } else {
-                        certificateData.append("\n\n");
+                        if (asymKey == null) {
+                            asymKey = ValidationKey.getValidationKey(validationKey, false);
+                        }
+                        decodedKey = asymKey;
                     }
-                    certificateData.append(new CertificateInfo(certificate).toString()
-                        .replace("  ", ""));
+                    VerificationCache.validate(decodedKey,
+                                               JWSDecoder,
+                                               detachedPayload,
+                                               jwsString);
+                    result.setBoolean(RSP_VALID, true);
+                } catch (Exception e) {
+                    result.setBoolean(RSP_VALID, false)
+                          .setString(RSP_ERROR, e.getMessage() == null ? 
+                                        e.getClass().getName() : e.getMessage());
                 }
+                writeResult(out, result, lineNumber);
+            }
+        } catch (Exception e) {
+            if (!written) {
+                // Nothing sent yet, a regular error response is still possible
+                throw e;
+            }
+            // The status line is long gone so the client learns about the
+            // truncated batch from a final result without a line number
+            metrics.error();
+            out.write(new JSONObjectWriter()
+                    .setBoolean(RSP_VALID, false)
+                    .setString(RSP_ERROR, e.getMessage() == null ?
+                                   e.getClass().getName() : e.getMessage())
+                    .serializeToString(JSONOutputFormats.NORMALIZED));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    static boolean isBlank(byte[] line) {
+        for (byte b : line) {
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
             }
-            
-            // Recreate the validation key and validate the signature
-            JWSValidator JWSValidator;
-            boolean jwkValidationKey = validationKey.startsWith("{");
-            if (JWSDecoder.getSignatureAlgorithm().isSymmetric()) {
-                JWSValidator = new JWSHmacValidator(CreateServlet.decodeSymmetricKey(validationKey));
+        }
+        return true;
+    }
+
+    static void writeResult(Writer out, JSONObjectWriter result, int lineNumber)
+            throws IOException {
+        out.write(result.serializeToString(JSONOutputFormats.NORMALIZED));
+        out.write('\n');
+        if (lineNumber % BATCH_FLUSH_INTERVAL == 0) {
+            out.flush();
+        }
+    }
+
+    // Also called directly by CreateServlet with an already parsed object and key
+    static void validateAndShow(HttpServletResponse response,
+                                JSONObjectReader parsedObject,
+                                String signatureLabel,
+                                String validationKey,
+                                ValidationKey decodedKey,
+                                PhaseTimer timer) throws Exception {
+        // Create a pretty-printed JSON object without canonicalization
+        String prettySignature = parsedObject.serializeToString(JSONOutputFormats.PRETTY_HTML);
+        timer.phase("pretty");
+        
+        // Now begin the real work...
+        
+        // Decode
+        JWSDecoder JWSDecoder = new JWSDecoder(parsedObject, signatureLabel);
+        timer.phase("decode");
+        
+        // For demo purposes only
+        String jwsString = parsedObject.getString(signatureLabel);
+
+        X509Certificate[] certificatePath = JWSDecoder.getOptionalCertificatePath();
+        StringBuilder certificateData = null;
+        if (certificatePath != null) {
+            for (X509Certificate certificate : certificatePath) {
+                if (certificateData == null) {
+                    certificateData = new StringBuilder();
+                } else {
+                    certificateData.append("\n\n");
+                }
+                certificateData.append(new CertificateInfo(certificate).toString()
+                    .replace("  ", ""));
+            }
+            timer.phase("certinfo");
+        }
+        
+        // Get the (usually cached) validation key and validate the signature
+        if (decodedKey == null) {
+            decodedKey = ValidationKey.getValidationKey(validationKey,
+                    JWSDecoder.getSignatureAlgorithm().isSymmetric());
+            timer.phase("key");
+        }
+        VerificationCache.validate(decodedKey, JWSDecoder, jwsString);
+        timer.phase("validate");
+        String standardJws = new StringBuilder(jwsString)
+            .insert(jwsString.indexOf('.') + 1, 
+                    Base64URL.encode(JWSDecoder.getPayload())).toString();
+        timer.setHeader(response);
+
+        // Everything is validated and decoded, now stream the result page
+        HTML.Page page = new HTML.Page(response, null)
+            .append("<div class='header'>Signature Successfully Validated</div>")
+            .fancyBox("signed", 
+                      prettySignature, 
+                      "\"Pretty-printed\" JWS/CT object")
+            .fancyCode("header", 
+                       JWSDecoder.getJWSHeaderAsString(),
+                       "Decoded JWS header")
+            .fancyCode("canonical", 
+                       new String(JWSDecoder.getPayload(), "utf-8"),
+                       "Canonical (RFC 8785) version of the signed JSON data " +
+                         "(\"JWS Payload\")")
+            .fancyBox("vkey",
+                      decodedKey.html,
+                      "Signature validation " +
+                          (JWSDecoder.getSignatureAlgorithm().isSymmetric() ?
+                         "secret key " +
+                         (validationKey.startsWith("@") ? "string value" : "in hexadecimal")
+                                                                            :
+                         "public key in " + 
+                         (decodedKey.jwk ? "JWK" : "PEM") +
+                         " format"));
+        if (certificateData != null) {
+            page.fancyCode("certpath", 
+                           certificateData.toString(),
+                           "Core certificate data");
+        }
+        page.fancyBox("original", 
+                      standardJws,
+      "Finally (as a reference only...), the same object expressed as a standard JWS")
+            .append("<div style='padding:10pt'></div>")
+            .close();
+        timer.phase("render");
+    }
+
+    static void showMultiSignature(HttpServletResponse response,
+                                   JSONObjectReader parsedObject,
+                                   String signatureLabel,
+                                   String[] validationKeys,
+                                   MultiSignature.Policy policy,
+                                   PhaseTimer timer) throws Exception {
+        String prettySignature = parsedObject.serializeToString(JSONOutputFormats.PRETTY_HTML);
+        timer.phase("pretty");
+
+        // Canonicalize once and verify all signatures in parallel
+        MultiSignature multiSignature =
+                new MultiSignature(parsedObject, signatureLabel, validationKeys, policy);
+        timer.phase("validate");
+        if (multiSignature.isValid()) {
+            timer.setHeader(response);
+        } else {
+            metrics.error();
+        }
+
+        HTML.Page page = new HTML.Page(response, null)
+            .append("<div class='header'>")
+            .append(multiSignature.isValid() ?
+                        "Signature Policy Satisfied" : "Signature Policy Not Satisfied")
+            .append("</div>")
+            .fancyBox("signed",
+                      prettySignature,
+                      "\"Pretty-printed\" multi-signed JWS/CT object")
+            .fancyCode("canonical",
+                       new String(multiSignature.payload, "utf-8"),
+                       "Canonical (RFC 8785) version of the signed JSON data " +
+                         "(\"JWS Payload\"), the same for all signatures")
+            .fancyCode("policy",
+                       multiSignature.getOutcome(),
+                       "Signature policy: " + HTML.encode(policy.text, false));
+        for (int i = 0; i < multiSignature.results.length; i++) {
+            MultiSignature.Result result = multiSignature.results[i];
+            page.fancyCode("sig" + i,
+                           result.decoder == null ?
+                                   result.jwsString : result.decoder.getJWSHeaderAsString(),
+                           "Signature #" + (i + 1) +
+                               (result.decoder == null ? "" : " JWS header") + " (" +
+                               (result.valid ? "valid" : HTML.encode("invalid: " +
+                                       MultiSignature.getError(result.error), false)) + ")");
+        }
+        page.append("<div style='padding:10pt'></div>")
+            .close();
+        timer.phase("render");
+    }
+
+    public ValidateServlet() {
+        super(metrics);
+    }
+
+    // The batch mode streams its results as the signed objects arrive
+    @Override
+    boolean isStreaming(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.startsWith(NDJSON_CONTENT_TYPE);
+    }
+
+    void process(HttpServletRequest request, HttpServletResponse response, long startTime)
+            throws IOException, ServletException {
+        try {
+            request.setCharacterEncoding("utf-8");
+            if (request.getContentType().startsWith(NDJSON_CONTENT_TYPE)) {
+                batchValidate(request, response);
+                return;
+            }
+
+            // Get the three input data items
+            PhaseTimer timer = new PhaseTimer("validate");
+            JSONObjectReader parsedObject;
+            String signatureLabel;
+            if (RequestBody.isJson(request)) {
+                // The signed object as is, the key and label in the query string
+                parsedObject = JSONParser.parse(RequestBody.read(request));
+                signatureLabel = CreateServlet.getParameter(request,
+                                                            JWS_SIGN_LABL,
+                                                            CreateServlet.DEFAULT_SIG_LBL);
+            } else if (request.getContentType().startsWith("application/x-www-form-urlencoded")) {
+                parsedObject = JSONParser.parse(CreateServlet.getParameter(request, JWS_OBJECT));
+                signatureLabel = CreateServlet.getParameter(request, JWS_SIGN_LABL);
             } else {
-                JWSValidator = new JWSAsymSignatureValidator(jwkValidationKey ? 
-                        JSONParser.parse(validationKey).getCorePublicKey(AlgorithmPreferences.JOSE)
-                                                                              :
-                        PEMDecoder.getPublicKey(validationKey.getBytes("utf-8")));
+                throw new IOException("Unexpected MIME type:" + request.getContentType());
             }
-            JWSValidator.validate(JWSDecoder);
-            StringBuilder html = new StringBuilder(
-                    "<div class='header'>Signature Successfully Validated</div>")
-                .append(HTML.fancyBox("signed", 
-                                      prettySignature, 
-                                      "\"Pretty-printed\" JWS/CT object"))           
-                .append(HTML.fancyCode("header", 
-                                       JWSDecoder.getJWSHeaderAsString(),
-                                      "Decoded JWS header"))
-                .append(HTML.fancyCode("canonical", 
-                                       new String(JWSDecoder.getPayload(), "utf-8"),
-                                      "Canonical (RFC 8785) version of the signed JSON data " +
-                                        "(\"JWS Payload\")"))
-                .append(HTML.fancyBox("vkey",
-                                      jwkValidationKey ? 
-                                          JSONParser.parse(validationKey)
-                                              .serializeToString(JSONOutputFormats.PRETTY_HTML)
-                                                       :
-                                          HTML.encode(validationKey, true),
-                          "Signature validation " +
-                              (JWSDecoder.getSignatureAlgorithm().isSymmetric() ?
-                             "secret key " +
-                             (validationKey.startsWith("@") ? "string value" : "in hexadecimal")
-                                                                                :
-                             "public key in " + 
-                             (jwkValidationKey ? "JWK" : "PEM") +
-                             " format")));
-            if (certificateData != null) {
-                html.append(HTML.fancyCode("certpath", 
-                                           certificateData.toString(),
-                                           "Core certificate data"));
+            timer.phase("parse");
+            if (MultiSignature.isMultiSigned(parsedObject, signatureLabel)) {
+                showMultiSignature(response,
+                                   parsedObject,
+                                   signatureLabel,
+                                   MultiSignature.splitKeys(
+                                           request.getParameterValues(JWS_VALIDATION_KEY)),
+                                   new MultiSignature.Policy(CreateServlet.getParameter(
+                                           request, JWS_POLICY, MultiSignature.POLICY_ALL)),
+                                   timer);
+            } else {
+                validateAndShow(response,
+                                parsedObject,
+                                signatureLabel,
+                                CreateServlet.getParameter(request, JWS_VALIDATION_KEY),
+                                null,
+                                timer);
             }
-            html.append(HTML.fancyBox("original", 
-                                      new StringBuilder(jwsString)
-                                        .insert(jwsString.indexOf('.') + 1, 
-                                                Base64URL.encode(JWSDecoder.getPayload())).toString(),
-          "Finally (as a reference only...), the same object expressed as a standard JWS"));
-
-            // Finally, print it out
-            HTML.standardPage(response, null, html.append("<div style='padding:10pt'></div>"));
+            timer.log(logger);
         } catch (Exception e) {
+            metrics.error();
             HTML.errorPage(response, e);
+        } finally {
+            metrics.done(startTime);
         }
     }
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
-
-        HTML.standardPage(response, null, new StringBuilder(
+    @Override
+    CachedPage renderPage() throws IOException {
+        return HTML.cachedPage(null, new StringBuilder(
                 "<form name='shoot' method='POST' action='validate'>" +
                 "<div class='header'>Testing JSON Signatures</div>")
             .append(HTML.fancyText(true,
                 JWS_OBJECT,
                 10, 
-                JwsCtService.sampleSignature,
+                JwsCtService.sampleSignature.getValue(),
                 "Paste a signed JSON object in the text box or try with the default"))
             .append(HTML.fancyText(true,
                 JWS_VALIDATION_KEY,
                 4, 
-                JwsCtService.samplePublicKey,
+                JwsCtService.samplePublicKey.getValue(),
                 "Validation key: secret key in hexadecimal or @string or public " +
-                "key in PEM or &quot;plain&quot; JWK format"))
+                "key in PEM or &quot;plain&quot; JWK format.  Signature arrays may " +
+                "have one key per signature, separated by empty lines"))
             .append(HTML.fancyText(true,
                 JWS_SIGN_LABL,
                 1, 
                 CreateServlet.DEFAULT_SIG_LBL,
                 "Anticipated signature label"))
+            .append(HTML.fancyText(true,
+                JWS_POLICY,
+                1,
+                MultiSignature.POLICY_ALL,
+                "Signature array policy: &quot;all&quot;, &quot;any&quot; or the " +
+                "number of signatures that must be valid"))
             .append(
                 "<div style='display:flex;justify-content:center'>" +
                 "<div class='stdbtn' onclick=\"document.forms.shoot.submit()\">" +
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.security.PublicKey;
+
+import org.webpki.crypto.AlgorithmPreferences;
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.jose.jws.JWSAsymSignatureValidator;
+import org.webpki.jose.jws.JWSHmacValidator;
+import org.webpki.jose.jws.JWSValidator;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+import org.webpki.util.PEMDecoder;
+
+/**
+ * Decoded validation key and a ready-to-use validator, cached by key text.
+ *
+ * Validators only hold the key so they can be shared between requests.
+ */
+class ValidationKey {
+
+    static final int MAX_CACHED_KEYS  = 256;
+    static final long KEY_TTL_MILLIS  = 10 * 60 * 1000;
+
+    static final BoundedCache<String, ValidationKey> cache =
+            new BoundedCache<>("Validation key cache", MAX_CACHED_KEYS, KEY_TTL_MILLIS);
+
+    String text;                      // The key as supplied (or derived)
+
+    byte[] secretKey;                 // For HMAC
+
+    PublicKey publicKey;              // For asymmetric algorithms
+
+    boolean jwk;                      // Public key in JWK format
+
+    JWSValidator validator;
+
+    String html;                      // Key formatted for the result page
+
+    byte[] fingerprint;               // See getFingerprint()
+
+    // SHA-256 of the key material, computed on first use
+    byte[] getFingerprint() throws IOException {
+        if (fingerprint == null) {
+            fingerprint = HashAlgorithms.SHA256.digest(secretKey == null ?
+                                                 publicKey.getEncoded() : secretKey);
+        }
+        return fingerprint;
+    }
+
+    static ValidationKey create(PublicKey publicKey, String validationKey, boolean jwk)
+            throws Exception {
+        ValidationKey decoded = new ValidationKey();
+        decoded.text = validationKey;
+        decoded.publicKey = publicKey;
+        decoded.jwk = jwk;
+        decoded.html = jwk ?
+                JSONParser.parse(validationKey).serializeToString(JSONOutputFormats.PRETTY_HTML)
+                           :
+                HTML.encode(validationKey, true);
+        decoded.validator = new JWSAsymSignatureValidator(publicKey);
+        return decoded;
+    }
+
+    static ValidationKey decode(String validationKey, boolean symmetric) throws Exception {
+        if (!symmetric) {
+            if (validationKey.startsWith("{")) {
+                // Parse once, use for both the key and the display
+                JSONObjectReader jwk = JSONParser.parse(validationKey);
+                ValidationKey decoded = new ValidationKey();
+                decoded.text = validationKey;
+                decoded.jwk = true;
+                decoded.html = jwk.serializeToString(JSONOutputFormats.PRETTY_HTML);
+                decoded.publicKey = jwk.getCorePublicKey(AlgorithmPreferences.JOSE);
+                decoded.validator = new JWSAsymSignatureValidator(decoded.publicKey);
+                return decoded;
+            }
+            return create(PEMDecoder.getPublicKey(validationKey.getBytes("utf-8")),
+                          validationKey,
+                          false);
+        }
+        ValidationKey decoded = new ValidationKey();
+        decoded.text = validationKey;
+        decoded.secretKey = CreateServlet.decodeSymmetricKey(validationKey);
+        decoded.validator = new JWSHmacValidator(decoded.secretKey);
+        decoded.html = HTML.encode(validationKey, true);
+        return decoded;
+    }
+
+    static ValidationKey getValidationKey(final String validationKey, final boolean symmetric)
+            throws Exception {
+        return cache.get((symmetric ? "S:" : "A:") + validationKey,
+                         new BoundedCache.Loader<String, ValidationKey>() {
+
+            @Override
+            public ValidationKey load(String key) throws Exception {
+                FlightEvents.KeyDecode event = new FlightEvents.KeyDecode();
+                event.begin();
+                event.keyFormat = symmetric ?
+                        (validationKey.startsWith("@") ? "string" : "hex")
+                                            :
+                        (validationKey.startsWith("{") ? "JWK" : "PEM");
+                try {
+                    ValidationKey decoded = decode(validationKey, symmetric);
+                    event.keyType = symmetric ?
+                            "oct" : FlightEvents.keyTypeOf(decoded.publicKey.getAlgorithm());
+                    event.done(null, validationKey.length(), null);
+                    return decoded;
+                } catch (Exception e) {
+                    event.done(null, validationKey.length(), e);
+                    throw e;
+                }
+            }
+
+        });
+    }
+}
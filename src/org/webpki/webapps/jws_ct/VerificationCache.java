@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.jose.jws.JWSDecoder;
+
+import org.webpki.util.Base64URL;
+
+/**
+ * Recent signature validation outcomes.
+ *
+ * The key is a SHA-256 over the validation key fingerprint, the canonical
+ * JWS payload and the JWS string so a hit requires exactly the same input.
+ * Failures are cached too, but briefly, which keeps floods of bad
+ * signatures cheap.  Identical requests arriving while a validation is in
+ * progress wait for its outcome instead of running their own.
+ */
+class VerificationCache {
+
+    static final int MAX_ENTRIES          = 4096;
+    static final long VALID_TTL_MILLIS    = 5 * 60 * 1000;
+    static final long INVALID_TTL_MILLIS  = 10 * 1000;
+
+    static class Outcome {
+        Exception error;              // IOException or GeneralSecurityException, null = valid
+
+        Outcome(Exception error) {
+            this.error = error;
+        }
+    }
+
+    static final BoundedCache<String, Outcome> cache =
+            new BoundedCache<>("Verification cache", MAX_ENTRIES, VALID_TTL_MILLIS);
+
+    static final ConcurrentHashMap<String, CompletableFuture<Outcome>> inFlight =
+            new ConcurrentHashMap<>();
+
+    static final LongAdder coalesced = new LongAdder();
+
+    static String getCacheKey(ValidationKey validationKey, byte[] payload, String jwsString)
+            throws IOException, GeneralSecurityException {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        messageDigest.update((byte) (validationKey.secretKey == null ? 'A' : 'S'));
+        messageDigest.update(validationKey.getFingerprint());
+        messageDigest.update(HashAlgorithms.SHA256.digest(payload));
+        messageDigest.update(jwsString.getBytes("utf-8"));
+        return Base64URL.encode(messageDigest.digest());
+    }
+
+    static Outcome verify(ValidationKey validationKey,
+                          JWSDecoder decoder,
+                          byte[] detachedPayload) {
+        try {
+            ValidateServlet.verify(validationKey.validator, decoder, detachedPayload);
+            return new Outcome(null);
+        } catch (IOException | GeneralSecurityException e) {
+            return new Outcome(e);
+        }
+    }
+
+    /**
+     * Validate a decoded JWS unless it was recently validated.
+     *
+     * @param jwsString The JWS as it appeared in the signed object
+     * @throws IOException or GeneralSecurityException like JWSValidator.validate()
+     */
+    static void validate(ValidationKey validationKey, JWSDecoder decoder, String jwsString)
+            throws IOException, GeneralSecurityException {
+        validate(validationKey, decoder, null, jwsString);
+    }
+
+    // For decoders created from a JWS string, see RawSignedObject
+    static void validate(ValidationKey validationKey,
+                         JWSDecoder decoder,
+                         byte[] detachedPayload,
+                         String jwsString) throws IOException, GeneralSecurityException {
+        String key = getCacheKey(validationKey,
+                                 detachedPayload == null ?
+                                         decoder.getPayload() : detachedPayload,
+                                 jwsString);
+        Outcome outcome = cache.getIfPresent(key);
+        if (outcome == null) {
+            CompletableFuture<Outcome> pending = new CompletableFuture<>();
+            CompletableFuture<Outcome> running = inFlight.putIfAbsent(key, pending);
+            if (running == null) {
+                try {
+                    outcome = verify(validationKey, decoder, detachedPayload);
+                    // Cached before leaving the in-flight map so there is no gap
+                    cache.put(key, outcome, (outcome.error == null ?
+                            VALID_TTL_MILLIS : INVALID_TTL_MILLIS) * 1000000L);
+                    pending.complete(outcome);
+                } catch (Throwable t) {
+                    // Errors too, otherwise the waiters would wait forever
+                    pending.completeExceptionally(t);
+                    throw t;
+                } finally {
+                    inFlight.remove(key, pending);
+                }
+            } else {
+                coalesced.increment();
+                try {
+                    outcome = running.join();
+                } catch (CompletionException e) {
+                    // Rethrow what the validating thread got
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+        if (outcome.error instanceof GeneralSecurityException) {
+            throw (GeneralSecurityException) outcome.error;
+        }
+        if (outcome.error != null) {
+            throw (IOException) outcome.error;
+        }
+    }
+}
@@ -18,12 +18,6 @@ package org.webpki.webapps.jws_ct;
 
 import java.io.IOException;
 
-import javax.servlet.ServletException;
-
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
 import org.webpki.crypto.AlgorithmPreferences;
 import org.webpki.crypto.AsymSignatureAlgorithms;
 import org.webpki.crypto.KeyTypes;
@@ -32,12 +26,12 @@ import org.webpki.jose.JOSEKeyWords;
 
 import org.webpki.json.JSONCryptoHelper;
 
-public class WebCryptoServlet extends HttpServlet {
+public class WebCryptoServlet extends CachedPageServlet {
 
     private static final long serialVersionUID = 1L;
 
-    public void doGet(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, ServletException {
+    @Override
+    CachedPage renderPage() throws IOException {
 
         StringBuilder html = new StringBuilder(
                 "<form name=\"shoot\" method=\"POST\" action=\"validate\">" +
@@ -61,7 +55,10 @@ public class WebCryptoServlet extends HttpServlet {
                 "</div>" +
                 "</div>" +
                 "<div id=\"pub.key\" style=\"padding-top:10pt\"></div>");
+        return HTML.scriptedPage(ScriptServlet.WEBCRYPTO_SCRIPT, html);
+    }
 
+    static String javaScript() throws IOException {
         StringBuilder js = new StringBuilder(
                 "var pubKey;\n" + 
                 "var privKey;\n" + 
@@ -70,52 +67,44 @@ public class WebCryptoServlet extends HttpServlet {
                 "//////////////////////////////////////////////////////////////////////////\n" + 
                 "// Utility methods                                                      //\n" + 
                 "//////////////////////////////////////////////////////////////////////////\n" + 
-                "var BASE64URL_ENCODE = [" + 
-                "'A','B','C','D','E','F','G','H'," + 
-                "'I','J','K','L','M','N','O','P'," + 
-                "'Q','R','S','T','U','V','W','X'," + 
-                "'Y','Z','a','b','c','d','e','f'," + 
-                "'g','h','i','j','k','l','m','n'," + 
-                "'o','p','q','r','s','t','u','v'," + 
-                "'w','x','y','z','0','1','2','3'," + 
-                "'4','5','6','7','8','9','-','_'];\n" + 
-                "function convertToBase64URL(binarray) {\n" + 
-                "    var encoded = new String ();\n" + 
-                "    var i = 0;\n" + 
-                "    var modulo3 = binarray.length % 3;\n" + 
-                "    while (i < binarray.length - modulo3) {\n" + 
-                "        encoded += BASE64URL_ENCODE[(binarray[i] >>> 2) & 0x3F];\n" + 
-                "        encoded += BASE64URL_ENCODE[((binarray[i++] << 4) & 0x30) | ((binarray[i] >>> 4) & 0x0F)];\n" + 
-                "        encoded += BASE64URL_ENCODE[((binarray[i++] << 2) & 0x3C) | ((binarray[i] >>> 6) & 0x03)];\n" + 
-                "        encoded += BASE64URL_ENCODE[binarray[i++] & 0x3F];\n" + 
-                "    }\n" + 
-                "    if (modulo3 == 1) {\n" + 
-                "        encoded += BASE64URL_ENCODE[(binarray[i] >>> 2) & 0x3F];\n" + 
-                "        encoded += BASE64URL_ENCODE[(binarray[i] << 4) & 0x30];\n" + 
-                "    }\n" + 
-                "    else if (modulo3 == 2) {\n" + 
-                "        encoded += BASE64URL_ENCODE[(binarray[i] >>> 2) & 0x3F];\n" + 
-                "        encoded += BASE64URL_ENCODE[((binarray[i++] << 4) & 0x30) | ((binarray[i] >>> 4) & 0x0F)];\n" + 
-                "        encoded += BASE64URL_ENCODE[(binarray[i] << 2) & 0x3C];\n" + 
-                "    }\n" + 
-                "    return encoded;\n" + 
-                "}\n\n" + 
-                "function convertToUTF8(string) {\n" + 
-                " var buffer = [];\n" + 
-                " for (var i = 0; i < string.length; i++) {\n" + 
-                "   var c = string.charCodeAt(i);\n" + 
-                "   if (c < 128) {\n" + 
-                "     buffer.push(c);\n" + 
-                "   } else if ((c > 127) && (c < 2048)) {\n" + 
-                "     buffer.push((c >> 6) | 0xC0);\n" + 
-                "     buffer.push((c & 0x3F) | 0x80);\n" + 
-                "   } else {\n" + 
-                "     buffer.push((c >> 12) | 0xE0);\n" + 
-                "     buffer.push(((c >> 6) & 0x3F) | 0x80);\n" + 
-                "     buffer.push((c & 0x3F) | 0x80);\n" + 
-                "   }\n" + 
-                " }\n" + 
-                " return new Uint8Array(buffer);\n" + 
+                "var BASE64URL_ENCODE = new TextEncoder().encode(\n" +
+                "    'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_');\n" +
+                "var BASE64URL_CHUNK = 0xC000;  // Multiple of 3\n" +
+                "function convertToBase64URL(binarray) {\n" +
+                "    var decoder = new TextDecoder();\n" +
+                "    var parts = [];\n" +
+                "    var chunk = new Uint8Array(BASE64URL_CHUNK / 3 * 4);\n" +
+                "    for (var start = 0; start < binarray.length; start += BASE64URL_CHUNK) {\n" +
+                "        var end = Math.min(start + BASE64URL_CHUNK, binarray.length);\n" +
+                "        var modulo3 = (end - start) % 3;\n" +
+                "        var q = 0;\n" +
+                "        var i = start;\n" +
+                "        while (i < end - modulo3) {\n" +
+                "            var triplet = (binarray[i++] << 16) | (binarray[i++] << 8) | binarray[i++];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[triplet >>> 18];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[(triplet >>> 12) & 0x3F];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[(triplet >>> 6) & 0x3F];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[triplet & 0x3F];\n" +
+                "        }\n" +
+                "        if (modulo3 == 1) {\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[binarray[i] >>> 2];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[(binarray[i] << 4) & 0x30];\n" +
+                "        } else if (modulo3 == 2) {\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[binarray[i] >>> 2];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[((binarray[i] << 4) & 0x30) | (binarray[i + 1] >>> 4)];\n" +
+                "            chunk[q++] = BASE64URL_ENCODE[(binarray[i + 1] << 2) & 0x3C];\n" +
+                "        }\n" +
+                "        parts.push(decoder.decode(chunk.subarray(0, q)));\n" +
+                "    }\n" +
+                "    return parts.join('');\n" +
+                "}\n" +
+                "\n" +
+                "var LONE_SURROGATE = /\\p{Surrogate}/u;\n" +
+                "function convertToUTF8(string) {\n" +
+                "    if (LONE_SURROGATE.test(string)) {\n" +
+                "        throw new TypeError('Lone surrogate in string');\n" +
+                "    }\n" +
+                "    return new TextEncoder().encode(string);\n" +
                 "}\n\n" + 
                 "//////////////////////////////////////////////////////////////////////////\n" + 
                 "// Nice-looking text-boxes                                              //\n" + 
@@ -180,45 +169,73 @@ public class WebCryptoServlet extends HttpServlet {
                 "//////////////////////////////////////////////////////////////////////////\n" +
                 "var canonicalize = function(object) {\n" +
                 "\n" +
-                "    var buffer = '';\n" +
+                "    var encoder = new TextEncoder();\n" +
+                "    var buffer = new Uint8Array(65536);\n" +
+                "    var length = 0;\n" +
                 "    serialize(object);\n" +
-                "    return buffer;\n" +
+                "    return buffer.subarray(0, length);\n" +
+                "\n" +
+                "    function reserve(bytes) {\n" +
+                "        if (length + bytes > buffer.length) {\n" +
+                "            var larger = new Uint8Array(Math.max(buffer.length * 2, length + bytes));\n" +
+                "            larger.set(buffer.subarray(0, length));\n" +
+                "            buffer = larger;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    function writeByte(b) {\n" +
+                "        reserve(1);\n" +
+                "        buffer[length++] = b;\n" +
+                "    }\n" +
+                "\n" +
+                "    function write(string) {\n" +
+                "        // A UTF-16 code unit needs at most three UTF-8 bytes\n" +
+                "        reserve(string.length * 3);\n" +
+                "        length += encoder.encodeInto(string, buffer.subarray(length)).written;\n" +
+                "    }\n" +
+                "\n" +
+                "    function writeString(string) {\n" +
+                "        if (LONE_SURROGATE.test(string)) {\n" +
+                "            throw new TypeError('Lone surrogate in string');\n" +
+                "        }\n" +
+                "        write(JSON.stringify(string));\n" +
+                "    }\n" +
                 "\n" +
                 "    function serialize(object) {\n" +
                 "        if (object !== null && typeof object === 'object') {\n" +
                 "            if (Array.isArray(object)) {\n" +
-                "                buffer += '[';\n" +
-                "                let next = false;\n" +
+                "                writeByte(0x5b);  // [\n" +
                 "                // Array - Maintain element order\n" +
-                "                object.forEach((element) => {\n" +
-                "                    if (next) {\n" +
-                "                buffer += ',';\n" +
+                "                for (var i = 0; i < object.length; i++) {\n" +
+                "                    if (i > 0) {\n" +
+                "                        writeByte(0x2c);  // ,\n" +
                 "                    }\n" +
-                "                    next = true;\n" +
                 "                    // Recursive call\n" +
-                "                    serialize(element);\n" +
-                "                });\n" +
-                "                buffer += ']';\n" +
+                "                    serialize(object[i]);\n" +
+                "                }\n" +
+                "                writeByte(0x5d);  // ]\n" +
                 "            } else {\n" +
-                "                buffer += '{';\n" +
-                "                let next = false;\n" +
-                "                // Object - Sort properties before serializing\n" +
-                "                Object.keys(object).sort().forEach((property) => {\n" +
-                "                    if (next) {\n" +
-                "                buffer += ',';\n" +
+                "                writeByte(0x7b);  // {\n" +
+                "                // Object - Sort properties (by UTF-16 code units) before serializing\n" +
+                "                var properties = Object.keys(object).sort();\n" +
+                "                for (var i = 0; i < properties.length; i++) {\n" +
+                "                    if (i > 0) {\n" +
+                "                        writeByte(0x2c);  // ,\n" +
                 "                    }\n" +
-                "                    next = true;\n" +
-                "                    // Properties are just strings - Use ES6\n" +
-                "                    buffer += JSON.stringify(property);\n" +
-                "                    buffer += ':';\n" +
+                "                    writeString(properties[i]);\n" +
+                "                    writeByte(0x3a);  // :\n" +
                 "                    // Recursive call\n" +
-                "                    serialize(object[property]);\n" +
-                "                });\n" +
-                "                buffer += '}';\n" +
+                "                    serialize(object[properties[i]]);\n" +
+                "                }\n" +
+                "                writeByte(0x7d);  // }\n" +
                 "            }\n" +
+                "        } else if (typeof object === 'string') {\n" +
+                "            writeString(object);\n" +
+                "        } else if (typeof object === 'number' && !isFinite(object)) {\n" +
+                "            throw new TypeError('Invalid number: ' + object);\n" +
                 "        } else {\n" +
                 "            // Primitive data type - Use ES6\n" +
-                "            buffer += JSON.stringify(object);\n" +
+                "            write(JSON.stringify(object));\n" +
                 "        }\n" +
                 "    }\n" +
                 "};\n\n" + 
@@ -261,12 +278,12 @@ public class WebCryptoServlet extends HttpServlet {
                 " = publicKeyInJWKFormat." + 
                 JSONCryptoHelper.E_JSON + 
                 ";\n" + 
+                "    var payloadB64 = convertToBase64URL(canonicalize(jsonObject));\n" + 
                 "  } catch (err) {\n" + 
                 "    bad('sign.res', 'JSON error: ' + err.toString());\n" + 
                 "    return;\n" + 
                 "  }\n" + 
                 "  var jwsHeaderB64 = convertToBase64URL(convertToUTF8(JSON.stringify(jwsHeader)));\n" + 
-                "  var payloadB64 = convertToBase64URL(convertToUTF8(canonicalize(jsonObject)));\n" + 
                 "  crypto.subtle.sign({name: 'RSASSA-PKCS1-v1_5'}, privKey,\n" + 
                 "                     convertToUTF8(jwsHeaderB64 + '.' + payloadB64" +
                         ")).then(function(signature) {\n" + 
@@ -297,6 +314,6 @@ public class WebCryptoServlet extends HttpServlet {
                 "  document.forms.shoot.submit();\n" +
                 "}\n");
 
-        HTML.standardPage(response, js.toString(), html);
+        return js.toString();
     }
 }
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+/**
+ * CanonicalWriter must produce exactly what the library produces.
+ */
+public class CanonicalWriterTest {
+
+    static final String[] CASES = {
+        "{}",
+        "{\"b\":true,\"a\":false,\"c\":null,\"d\":[],\"e\":{}}",
+        // Numbers (ES6 formatting)
+        "{\"n\":[0,-0,1,-1,0.5,100,1e21,1e20,1e-6,1e-7,123.456,-1.5e-10," +
+            "9007199254740991,9007199254740993,5e-324,1.7976931348623157e308," +
+            "333333333.33333329,4.50,2e-3,0.000001]}",
+        // Escapes
+        "{\"s\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u0000\\u0001\\u001f\\u007f\\u0080\"}",
+        // Multi-byte UTF-8 and UTF-16 property sorting
+        "{\"\\u20ac\":\"\\u00e5\\u20ac\\ud83d\\ude00\",\"\\ud83d\\ude00\":1," +
+            "\"\\ufb33\":2,\"\\u00e5\":3,\"a\":4,\"\\u07ff\\u0800\\uffff\":5}",
+        // Lone surrogates
+        "{\"s\":\"\\ud800\"}",
+        "{\"s\":\"a\\udc00b\"}",
+        "{\"s\":\"x\\ud83d\"}",
+        "{\"s\":\"\\ude00\\ud83d\"}",
+        "{\"\\ud800\":\"\\udfff\\udfff\"}",
+        // Nesting
+        "{\"a\":[1,[2,[3,{\"z\":[],\"y\":{\"x\":\"w\"}}]],\"v\"],\"b\":{\"c\":{\"d\":[null]}}}"
+    };
+
+    static int failures;
+
+    static void check(String name, JSONObjectReader object) throws Exception {
+        byte[] expected = object.serializeToBytes(JSONOutputFormats.CANONICALIZED);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        long count = CanonicalWriter.canonicalize(object, buffer);
+        byte[] actual = buffer.toByteArray();
+        if (!Arrays.equals(expected, actual) || count != expected.length) {
+            failures++;
+            System.out.println("FAIL " + name + "\n  expected: " + new String(expected, "utf-8") +
+                               "\n  actual:   " + new String(actual, "utf-8"));
+        }
+        if (!Arrays.equals(CanonicalWriter.digest(object, HashAlgorithms.SHA256),
+                           MessageDigest.getInstance("SHA-256").digest(expected))) {
+            failures++;
+            System.out.println("FAIL digest " + name);
+        }
+    }
+
+    // Strings and multi-byte characters crossing BUFFER_SIZE boundaries
+    static String large() {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 3 * CanonicalWriter.BUFFER_SIZE / 10; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"p").append(i).append("\":\"");
+            for (int q = 0; q < i % 7; q++) {
+                json.append("\\u20ac\\ud83d\\ude00\\u00e5");
+            }
+            json.append("\"");
+        }
+        return json.append('}').toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String json : CASES) {
+            check(json, JSONParser.parse(json));
+        }
+        check("large", JSONParser.parse(large()));
+        check("sample-data-to-sign.json", JSONParser.parse(
+                Files.readAllBytes(Paths.get("sample-data-to-sign.json"))));
+        if (failures > 0) {
+            throw new IOException(failures + " failure(s)");
+        }
+        System.out.println("CanonicalWriterTest: " + (CASES.length + 2) + " objects OK");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2018-2020 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.jws_ct;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import org.webpki.jose.jws.JWSDecoder;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONOutputFormats;
+import org.webpki.json.JSONParser;
+
+/**
+ * RawSignedObject.split() must either give up (null) or produce the same
+ * JWS and payload as the JWSDecoder(parsedObject, label) route.
+ */
+public class RawSignedObjectTest {
+
+    // Detached JWS with the header {"alg":"HS256"}
+    static final String JWS = "eyJhbGciOiJIUzI1NiJ9..c2lnbmF0dXJl";
+
+    static final String LABEL = CreateServlet.DEFAULT_SIG_LBL;
+
+    static int failures;
+
+    static void fail(String name, String what) {
+        failures++;
+        System.out.println("FAIL " + name + ": " + what);
+    }
+
+    // The signature property must be cut out leaving exactly "unsigned"
+    static void split(String json, String label, String unsigned) throws Exception {
+        byte[] raw = json.getBytes("utf-8");
+        RawSignedObject rawSigned = RawSignedObject.split(raw, label);
+        if (rawSigned == null) {
+            fail(json, "not split");
+            return;
+        }
+        if (!new String(rawSigned.unsigned, "utf-8").equals(unsigned)) {
+            fail(json, "unsigned is " + new String(rawSigned.unsigned, "utf-8"));
+        }
+        JSONObjectReader parsedObject = JSONParser.parse(raw);
+        if (!rawSigned.jwsString.equals(parsedObject.getString(label))) {
+            fail(json, "JWS is " + rawSigned.jwsString);
+        }
+        byte[] expected = new JWSDecoder(JSONParser.parse(raw), label).getPayload();
+        byte[] actual = JSONParser.parse(rawSigned.unsigned)
+                .serializeToBytes(JSONOutputFormats.CANONICALIZED);
+        if (!Arrays.equals(expected, actual)) {
+            fail(json, "payload is " + new String(actual, "utf-8"));
+        }
+    }
+
+    // The scanner must leave these to the parser
+    static void noSplit(String json, String label) throws Exception {
+        if (RawSignedObject.split(json.getBytes("utf-8"), label) != null) {
+            fail(json, "split");
+        }
+    }
+
+    static String signature(String label) {
+        return "\"" + label + "\":\"" + JWS + "\"";
+    }
+
+    public static void main(String[] args) throws Exception {
+        String sig = signature(LABEL);
+
+        // Member positions
+        split("{" + sig + "}", LABEL, "{}");
+        split("{" + sig + ",\"a\":1}", LABEL, "{\"a\":1}");
+        split("{\"a\":1," + sig + ",\"b\":2}", LABEL, "{\"a\":1,\"b\":2}");
+        split("{\"a\":1,\"b\":2," + sig + "}", LABEL, "{\"a\":1,\"b\":2}");
+
+        // Whitespace around commas, colons and braces
+        split(" {\n  \"a\" : [ 1 , 2 ] ,\r\n\t\"" + LABEL + "\" : \"" + JWS + "\" ,\n  \"b\" : 3\n}\n",
+              LABEL,
+              " {\n  \"a\" : [ 1 , 2 ] ,\n  \"b\" : 3\n}\n");
+        split("{ " + sig + " , \"a\" : 1 }", LABEL, "{  \"a\" : 1 }");
+        split("{ \"a\" : 1 , " + sig + " }", LABEL, "{ \"a\" : 1  }");
+
+        // Nested signature labels belong to the payload
+        split("{\"a\":{" + sig + "}," + sig + ",\"b\":[{\"" + LABEL + "\":1}]}",
+              LABEL,
+              "{\"a\":{" + sig + "},\"b\":[{\"" + LABEL + "\":1}]}");
+        noSplit("{\"a\":{" + sig + "}}", LABEL);
+
+        // Strings that look like structure
+        split("{\"a\":\"}{,:[\\\"\\\\\"," + sig + ",\"b\":\"\\\"" + LABEL + "\\\"\"}",
+              LABEL,
+              "{\"a\":\"}{,:[\\\"\\\\\",\"b\":\"\\\"" + LABEL + "\\\"\"}");
+        split("{\"\u00e5\u20ac\":\"\u00e5\u20ac\\ud83d\\ude00\"," + sig + "}",
+              LABEL,
+              "{\"\u00e5\u20ac\":\"\u00e5\u20ac\\ud83d\\ude00\"}");
+
+        // Other labels
+        split("{" + sig + "," + signature("proof") + "}", "proof", "{" + sig + "}");
+        noSplit("{" + sig + "}", "proof");
+
+        // Escaped or duplicate labels
+        noSplit("{\"a\":1,\"" + LABEL.substring(0, 2) + "\\u00" +
+                Integer.toHexString(LABEL.charAt(2)) + LABEL.substring(3) + "\":\"" + JWS + "\"}",
+                LABEL);
+        noSplit("{\"\\u0061\":1," + sig + "}", LABEL);
+        noSplit("{" + sig + "," + sig + "}", LABEL);
+        noSplit("{" + sig + ",\"a\":1," + sig + "}", LABEL);
+
+        // Not a detached JWS string
+        noSplit("{\"" + LABEL + "\":1}", LABEL);
+        noSplit("{\"" + LABEL + "\":{\"a\":\"" + JWS + "\"}}", LABEL);
+        noSplit("{\"" + LABEL + "\":\"eyJhbGciOiJIUzI1NiJ9.eyJhIjoxfQ.c2ln\"}", LABEL);
+        noSplit("{\"" + LABEL + "\":\"eyJhbGciOiJIUzI1NiJ9\\u002e.c2ln\"}", LABEL);
+
+        // Not an object, or junk
+        noSplit("{}", LABEL);
+        noSplit("[" + sig + "]", LABEL);
+        noSplit("{" + sig + "} x", LABEL);
+        noSplit("{" + sig + ",}", LABEL);
+        noSplit("{" + sig, LABEL);
+        noSplit("{\"" + LABEL + "\":\"" + JWS, LABEL);
+
+        if (failures > 0) {
+            throw new IOException(failures + " failure(s)");
+        }
+        System.out.println("RawSignedObjectTest: OK");
+    }
+}